@@ -0,0 +1,187 @@
+package se.attini.runner;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+
+/**
+ * Uploads a log as immutable chunks, so that every byte is only uploaded once. Each sync uploads what was written
+ * since the previous sync to {@code <key>/<chunk number>.log} and then replaces {@code <key>/manifest.json}, which
+ * lists the chunks in order. Listing the key prefix also returns the chunks in order, since the chunk numbers are
+ * zero padded.
+ * <p>
+ * If a chunk fails to upload, the next sync uploads it again together with anything written since, under the same
+ * chunk number.
+ * <p>
+ * With gzip enabled every chunk is compressed on its own and stored as {@code <chunk number>.log.gz}, so chunks can
+ * still be read independently of each other.
+ * <p>
+ * The final sync also writes the whole log, uncompressed, to {@code <key>}, where the {@link WholeFileLogUploader}
+ * puts it, so that readers that do not know about the manifest still find it. The uploaded parts of the log may
+ * already have been deleted locally, so the chunks are read back from S3 and streamed into a single put. The
+ * combined log is written before the manifest is marked as complete.
+ */
+final class ChunkedLogUploader implements LogUploader {
+
+    static final String MANIFEST_NAME = "manifest.json";
+
+    private final S3Client s3Client;
+    private final ObjectMapper objectMapper;
+    private final String bucket;
+    private final String key;
+    private final boolean gzip;
+    private final List<LogManifest.Chunk> chunks;
+    private long uploadedLength;
+    private long pendingFirstTimestamp = -1;
+    private boolean manifestOutdated;
+
+    ChunkedLogUploader(S3Client s3Client, ObjectMapper objectMapper, String bucket, String key, boolean gzip) {
+        this.s3Client = s3Client;
+        this.objectMapper = objectMapper;
+        this.bucket = bucket;
+        this.key = key;
+        this.gzip = gzip;
+        this.chunks = new ArrayList<>();
+    }
+
+    @Override
+    public long upload(JobLogSink.Snapshot snapshot, boolean complete) {
+        if (pendingFirstTimestamp < 0) {
+            pendingFirstTimestamp = snapshot.firstTimestamp();
+        }
+        if (snapshot.length() > uploadedLength) {
+            long length = snapshot.length() - uploadedLength;
+            chunks.add(gzip ? putGzipChunk(length, snapshot) : putChunk(length, snapshot));
+            uploadedLength = snapshot.length();
+            pendingFirstTimestamp = -1;
+            manifestOutdated = true;
+        }
+        if (complete) {
+            putCombinedLog();
+        }
+        if (manifestOutdated || complete) {
+            putManifest(complete);
+            manifestOutdated = false;
+        }
+        return uploadedLength;
+    }
+
+    private LogManifest.Chunk putChunk(long length, JobLogSink.Snapshot snapshot) {
+        String name = String.format("%08d.log", chunks.size());
+        s3Client.putObject(PutObjectRequest.builder().bucket(bucket).key(key + "/" + name).build(),
+                           snapshot.range(uploadedLength, length));
+        return new LogManifest.Chunk(name,
+                                     uploadedLength,
+                                     length,
+                                     length,
+                                     null,
+                                     pendingFirstTimestamp,
+                                     snapshot.lastTimestamp());
+    }
+
+    private LogManifest.Chunk putGzipChunk(long length, JobLogSink.Snapshot snapshot) {
+        String name = String.format("%08d.log.gz", chunks.size());
+        Path compressedFile = null;
+        try {
+            compressedFile = Files.createTempFile(name, null);
+            try (InputStream inputStream = snapshot.openRange(uploadedLength, length);
+                 OutputStream outputStream = new GZIPOutputStream(Files.newOutputStream(compressedFile), 64 * 1024)) {
+                inputStream.transferTo(outputStream);
+            }
+            long storedLength = Files.size(compressedFile);
+            s3Client.putObject(PutObjectRequest.builder().bucket(bucket).key(key + "/" + name).build(),
+                               RequestBody.fromFile(compressedFile));
+            return new LogManifest.Chunk(name,
+                                         uploadedLength,
+                                         length,
+                                         storedLength,
+                                         LogManifest.GZIP_ENCODING,
+                                         pendingFirstTimestamp,
+                                         snapshot.lastTimestamp());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            if (compressedFile != null) {
+                try {
+                    Files.deleteIfExists(compressedFile);
+                } catch (IOException ignored) {
+                    // the temp directory is cleaned up with the task
+                }
+            }
+        }
+    }
+
+    private void putCombinedLog() {
+        List<LogManifest.Chunk> uploadedChunks = List.copyOf(chunks);
+        s3Client.putObject(PutObjectRequest.builder().bucket(bucket).key(key).build(),
+                           RequestBody.fromContentProvider(() -> openChunks(uploadedChunks),
+                                                           uploadedLength,
+                                                           "application/octet-stream"));
+    }
+
+    /**
+     * Open the chunks as a single stream. Each chunk is only downloaded when the previous one has been read.
+     */
+    private InputStream openChunks(List<LogManifest.Chunk> uploadedChunks) {
+        Iterator<LogManifest.Chunk> iterator = uploadedChunks.iterator();
+        return new SequenceInputStream(new Enumeration<>() {
+            @Override
+            public boolean hasMoreElements() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public InputStream nextElement() {
+                LogManifest.Chunk chunk = iterator.next();
+                InputStream inputStream = s3Client.getObject(GetObjectRequest.builder()
+                                                                             .bucket(bucket)
+                                                                             .key(key + "/" + chunk.name())
+                                                                             .build());
+                try {
+                    return chunk.isGzip() ? new GZIPInputStream(inputStream, 64 * 1024) : inputStream;
+                } catch (IOException e) {
+                    try {
+                        inputStream.close();
+                    } catch (IOException closeException) {
+                        e.addSuppressed(closeException);
+                    }
+                    throw new UncheckedIOException(e);
+                }
+            }
+        });
+    }
+
+    private void putManifest(boolean complete) {
+        try {
+            byte[] manifest = objectMapper.writeValueAsBytes(new LogManifest(LogManifest.VERSION,
+                                                                             complete,
+                                                                             List.copyOf(chunks)));
+            s3Client.putObject(PutObjectRequest.builder()
+                                               .bucket(bucket)
+                                               .key(key + "/" + MANIFEST_NAME)
+                                               .contentType("application/json")
+                                               .build(),
+                               RequestBody.fromBytes(manifest));
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Could not create log manifest", e);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package se.attini.runner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Writes job output to stdout from a single background thread, so that the threads reading the output of concurrent
+ * jobs never wait for each other or for stdout. Lines of a job are prefixed with the job's step name, and the lines
+ * queued while a batch is written are written together in the next batch.
+ * <p>
+ * The console is best effort for the output of job steps, since it is also logged to S3. When the queue is more than
+ * 80% full only every tenth line of a job is kept, and when it is full lines are dropped. The number of lines left
+ * out is written to the console once there is room again. Output that does not belong to a job, such as the output
+ * of the startup commands, is only written to the console, so it is never left out and waits for room instead.
+ */
+@ApplicationScoped
+public class ConsoleWriter {
+
+    private static final Logger logger = Logger.getLogger(ConsoleWriter.class);
+
+    private static final int QUEUE_CAPACITY = 10_000;
+
+    private static final int MAX_BATCH_SIZE = 1000;
+
+    private static final int SAMPLE_RATE = 10;
+
+    private static final long POLL_TIMEOUT_MILLIS = 100;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final OutputStream outputStream;
+    private final BlockingQueue<byte[]> queue;
+    private final int samplingThreshold;
+    private final AtomicLong droppedLines;
+    private final AtomicLong sampleCounter;
+    private final Map<String, byte[]> prefixes;
+    private Thread writerThread;
+    private volatile boolean closed;
+
+    public ConsoleWriter() {
+        this(System.out, QUEUE_CAPACITY);
+    }
+
+    ConsoleWriter(OutputStream outputStream, int capacity) {
+        this.outputStream = outputStream;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.samplingThreshold = capacity * 8 / 10;
+        this.droppedLines = new AtomicLong();
+        this.sampleCounter = new AtomicLong();
+        this.prefixes = new ConcurrentHashMap<>();
+    }
+
+    @PostConstruct
+    synchronized void start() {
+        if (writerThread == null) {
+            writerThread = new Thread(this::writeLoop, "console-writer-thread");
+            writerThread.setDaemon(true);
+            writerThread.start();
+        }
+    }
+
+    /**
+     * Queue a line given as UTF-8 bytes. Never blocks for the output of a job. The line is copied, so the buffer can
+     * be reused when the method returns.
+     *
+     * @param jobData the job that wrote the line, null for output that does not belong to a job, which waits for
+     *                room in the queue since it is not logged anywhere else
+     */
+    public void write(JobData jobData, byte[] line, int offset, int length) {
+        if (jobData == null) {
+            try {
+                queue.put(entry(EMPTY, line, offset, length));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                droppedLines.incrementAndGet();
+            }
+            return;
+        }
+        if (queue.size() >= samplingThreshold && sampleCounter.incrementAndGet() % SAMPLE_RATE != 0) {
+            droppedLines.incrementAndGet();
+            return;
+        }
+        if (!queue.offer(entry(prefix(jobData.stepName()), line, offset, length))) {
+            droppedLines.incrementAndGet();
+        }
+    }
+
+    private static byte[] entry(byte[] prefix, byte[] line, int offset, int length) {
+        byte[] entry = new byte[prefix.length + length + 1];
+        System.arraycopy(prefix, 0, entry, 0, prefix.length);
+        System.arraycopy(line, offset, entry, prefix.length, length);
+        entry[entry.length - 1] = '\n';
+        return entry;
+    }
+
+    private byte[] prefix(String stepName) {
+        byte[] prefix = prefixes.get(stepName);
+        if (prefix == null) {
+            prefix = ("[" + stepName + "] ").getBytes(StandardCharsets.UTF_8);
+            prefixes.put(stepName, prefix);
+        }
+        return prefix;
+    }
+
+    /**
+     * @return the number of lines left out since the last time it was reported on the console
+     */
+    public long getDroppedLines() {
+        return droppedLines.get();
+    }
+
+    private void writeLoop() {
+        List<byte[]> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(64 * 1024);
+        while (!closed || !queue.isEmpty()) {
+            try {
+                // waits for the first line, and the lines queued meanwhile are written with it
+                byte[] first = queue.poll(POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+                writeBatch(batch, buffer);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (IOException e) {
+                logger.warn("Could not write job output to the console. Message: " + e.getMessage());
+            } finally {
+                batch.clear();
+                buffer.reset();
+            }
+        }
+    }
+
+    private void writeBatch(List<byte[]> batch, ByteArrayOutputStream buffer) throws IOException {
+        for (byte[] line : batch) {
+            buffer.write(line);
+        }
+        long dropped = droppedLines.getAndSet(0);
+        if (dropped > 0) {
+            buffer.write(("[" + dropped + " lines were not written to the console because output was produced faster than it could be written, the output of job steps is logged to S3]\n")
+                                 .getBytes(StandardCharsets.UTF_8));
+        }
+        buffer.writeTo(outputStream);
+        outputStream.flush();
+    }
+
+    /**
+     * Write the queued lines and stop the writer thread.
+     */
+    @PreDestroy
+    public synchronized void close() {
+        closed = true;
+        if (writerThread == null) {
+            return;
+        }
+        try {
+            writerThread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -9,6 +9,7 @@ import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
 
@@ -27,21 +28,50 @@ public class ContainerMetadataFacade {
 
     private final ObjectMapper objectMapper = new ObjectMapper();
 
+    private final HttpClient httpClient;
+
     private final static String LOG_URL = "https://%s.console.aws.amazon.com/cloudwatch/home?region=%s#logsV2:log-groups/log-group/%s/log-events/%s";
 
+    private volatile ContainerMetadata cachedMetadata;
+
 
     @Inject
     public ContainerMetadataFacade(EnvironmentVariables environmentVariables) {
         this.environmentVariables = requireNonNull(environmentVariables, "environmentVariables");
+        this.httpClient = HttpClient.newBuilder()
+                                    .connectTimeout(Duration.ofSeconds(5))
+                                    .build();
     }
 
+    /**
+     * Get the container metadata. The metadata is read once and then only updated by {@link #refreshMetadata()},
+     * which the job dispatcher calls for every batch of messages, so the returned value can be as old as the last
+     * batch. Use {@link #refreshMetadata()} if that is not acceptable.
+     */
     public ContainerMetadata getMetadata() {
+        ContainerMetadata metadata = cachedMetadata;
+        if (metadata == null) {
+            metadata = refreshMetadata();
+        }
+        return metadata;
+    }
+
+    /**
+     * Read the container metadata from the metadata endpoint and update the cached value.
+     */
+    public ContainerMetadata refreshMetadata() {
+        ContainerMetadata metadata = readMetadata();
+        cachedMetadata = metadata;
+        return metadata;
+    }
+
+    private ContainerMetadata readMetadata() {
         try {
             logger.debug("Checking container metadata for status");
             String metaDataEndpoint = environmentVariables.getMetaDataEndpoint();
-            String body = HttpClient.newHttpClient()
-                                    .send(HttpRequest.newBuilder()
+            String body = httpClient.send(HttpRequest.newBuilder()
                                                      .uri(URI.create(metaDataEndpoint))
+                                                     .timeout(Duration.ofSeconds(10))
                                                      .GET()
                                                      .build(), HttpResponse.BodyHandlers.ofString())
                                     .body();
@@ -52,7 +82,10 @@ public class ContainerMetadataFacade {
             return new ContainerMetadata(jsonNode.path("DesiredStatus").asText().equals("STOPPED"),
                                          jsonNode.path("Labels").path("com.amazonaws.ecs.task-arn").asText(),
                                          logUrl);
-        } catch (IOException | InterruptedException e) {
+        } catch (IOException e) {
+            throw new ContainerMetadataException("Error when getting container metadata", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             throw new ContainerMetadataException("Error when getting container metadata", e);
         }
     }
@@ -0,0 +1,96 @@
+package se.attini.runner;
+
+import static java.util.Objects.requireNonNull;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+import org.jboss.logging.Logger;
+
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
+
+/**
+ * Keeps track of which executions are current for each deployment. A job that belongs to a known
+ * execution is accepted from the cache for a short while, but an unknown execution is always checked
+ * against the deploy data table so that new executions are picked up right away.
+ */
+@ApplicationScoped
+public class DeploymentExecutionCache {
+
+    private static final Logger logger = Logger.getLogger(DeploymentExecutionCache.class);
+
+    private static final Duration DEFAULT_TTL = Duration.ofSeconds(10);
+    private static final int MAX_DEPLOYMENTS = 64;
+
+    private final DynamoDbClient dynamoDbClient;
+    private final EnvironmentVariables environmentVariables;
+    private final long ttlNanos;
+    private final Map<String, Executions> executionsByDeployment;
+
+    @Inject
+    public DeploymentExecutionCache(DynamoDbClient dynamoDbClient, EnvironmentVariables environmentVariables) {
+        this(dynamoDbClient, environmentVariables, DEFAULT_TTL);
+    }
+
+    DeploymentExecutionCache(DynamoDbClient dynamoDbClient, EnvironmentVariables environmentVariables, Duration ttl) {
+        this.dynamoDbClient = requireNonNull(dynamoDbClient, "dynamoDbClient");
+        this.environmentVariables = requireNonNull(environmentVariables, "environmentVariables");
+        this.ttlNanos = requireNonNull(ttl, "ttl").toNanos();
+        this.executionsByDeployment = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Executions> eldest) {
+                return size() > MAX_DEPLOYMENTS;
+            }
+        };
+    }
+
+    public synchronized boolean isCurrentExecution(JobData jobData) {
+        String deploymentName = jobData.environment() + "-" + jobData.distributionName();
+        Executions cached = executionsByDeployment.get(deploymentName);
+        if (cached != null && !cached.isExpired(ttlNanos) && cached.executionArns()
+                                                                  .contains(jobData.executionArn())) {
+            return true;
+        }
+        logger.debug("Reading current executions for deployment " + deploymentName);
+        Executions executions = new Executions(getExecutionArns(deploymentName), System.nanoTime());
+        executionsByDeployment.put(deploymentName, executions);
+        return executions.executionArns().contains(jobData.executionArn());
+    }
+
+    private Set<String> getExecutionArns(String deploymentName) {
+        return dynamoDbClient.getItem(GetItemRequest.builder()
+                                                    .tableName(environmentVariables.getDeploymentDataTable())
+                                                    .key(Map.of("deploymentName",
+                                                                AttributeValue.builder()
+                                                                              .s(deploymentName)
+                                                                              .build(),
+                                                                "deploymentTime",
+                                                                AttributeValue.builder()
+                                                                              .n("0")
+                                                                              .build()))
+                                                    .build())
+                             .item()
+                             .get("executionArns")
+                             .m()
+                             .values()
+                             .stream()
+                             .map(AttributeValue::s)
+                             .filter(Objects::nonNull)
+                             .collect(Collectors.toUnmodifiableSet());
+    }
+
+    private record Executions(Set<String> executionArns, long readAt) {
+
+        boolean isExpired(long ttlNanos) {
+            return System.nanoTime() - readAt > ttlNanos;
+        }
+    }
+}
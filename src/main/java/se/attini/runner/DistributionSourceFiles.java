@@ -2,81 +2,262 @@ package se.attini.runner;
 
 import static java.util.Objects.requireNonNull;
 
-import java.io.File;
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
 
+import org.apache.commons.io.FileUtils;
 import org.jboss.logging.Logger;
 
-import io.quarkus.fs.util.ZipUtils;
-import se.attini.runner.BeanFactory.CustomAwsClient;
-import software.amazon.awssdk.core.sync.ResponseTransformer;
-import software.amazon.awssdk.services.s3.S3Client;
-import software.amazon.awssdk.services.s3.model.GetObjectRequest;
-
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
 
+/**
+ * Provides jobs with the source files of their distribution. The extracted source zips are kept in a cache on disk,
+ * keyed by bucket, prefix, distribution name and object identifier, so that a runner that works for several
+ * distributions or environments does not download a zip again every time it switches between them.
+ * <p>
+ * Every zip is downloaded and extracted once, by the first job that needs it, and jobs that need the same zip wait
+ * for that. The extracted files are a template that every job gets its own workspace from, see
+ * {@link WorkspaceCloner}. Jobs that need a zip that is already cached never wait for a download of another one. When
+ * the cache is larger than ATTINI_SOURCE_CACHE_LIMIT_MB the least recently used templates that no job is using are
+ * removed from the cache and deleted in the background by the {@link WorkspaceReaper}.
+ */
 @ApplicationScoped
 public class DistributionSourceFiles {
 
     private static final Logger logger = Logger.getLogger(DistributionSourceFiles.class);
 
+    private final S3Downloader s3Downloader;
+    private final ZipExtractor zipExtractor;
+    private final WorkspaceCloner workspaceCloner;
+    private final WorkspaceReaper workspaceReaper;
+    private final Path cacheDirectory;
+    private final long maxCacheBytes;
+    private final boolean streamingExtract;
+    private final Map<SourceKey, CacheEntry> cache;
+    private boolean cacheDirectoryCreated;
+
+    /**
+     * Identifies a version of a distribution's source zip.
+     */
+    record SourceKey(String bucket, String prefix, String distributionName, String objectIdentifier) {
 
-    private final S3Client s3Client;
+        static SourceKey of(JobData jobData) {
+            return new SourceKey(jobData.sourceBucket(),
+                                 jobData.sourcePrefix(),
+                                 jobData.distributionName(),
+                                 jobData.objectIdentifier());
+        }
 
-    private String objectIdentifier;
-    private Path sourcePath;
+        String objectKey() {
+            return prefix + "/" + distributionName + ".zip";
+        }
+
+        /**
+         * @return a file name made from a hash of the key, so that it is safe to use whatever the key contains
+         */
+        String fileName() {
+            try {
+                MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                String key = String.join("\n", bucket, prefix, distributionName, objectIdentifier);
+                return HexFormat.of().formatHex(digest.digest(key.getBytes(StandardCharsets.UTF_8)));
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * A cached template. It is completed by the job that downloaded and extracted the zip, and the entry is pinned
+     * while jobs create workspaces from it so that it is not evicted under them.
+     */
+    private static class CacheEntry {
+        private final CompletableFuture<Path> template = new CompletableFuture<>();
+        private long size;
+        private int pins;
+    }
 
     @Inject
-    public DistributionSourceFiles(@CustomAwsClient S3Client s3Client) {
-        this.s3Client = requireNonNull(s3Client, "s3Client");
+    public DistributionSourceFiles(S3Downloader s3Downloader,
+                                   ZipExtractor zipExtractor,
+                                   WorkspaceCloner workspaceCloner,
+                                   WorkspaceReaper workspaceReaper,
+                                   EnvironmentVariables environmentVariables) {
+        this(s3Downloader,
+             zipExtractor,
+             workspaceCloner,
+             workspaceReaper,
+             Path.of(System.getProperty("java.io.tmpdir"), "attini-source-cache"),
+             environmentVariables.getSourceCacheLimit() * 1024L * 1024L,
+             environmentVariables.isStreamingExtractEnabled());
     }
 
+    DistributionSourceFiles(S3Downloader s3Downloader,
+                            ZipExtractor zipExtractor,
+                            WorkspaceCloner workspaceCloner,
+                            WorkspaceReaper workspaceReaper,
+                            Path cacheDirectory,
+                            long maxCacheBytes,
+                            boolean streamingExtract) {
+        this.s3Downloader = requireNonNull(s3Downloader, "s3Downloader");
+        this.zipExtractor = requireNonNull(zipExtractor, "zipExtractor");
+        this.workspaceCloner = requireNonNull(workspaceCloner, "workspaceCloner");
+        this.workspaceReaper = requireNonNull(workspaceReaper, "workspaceReaper");
+        this.cacheDirectory = requireNonNull(cacheDirectory, "cacheDirectory");
+        this.maxCacheBytes = maxCacheBytes;
+        this.streamingExtract = streamingExtract;
+        this.cache = new LinkedHashMap<>(16, 0.75f, true);
+    }
 
-    public synchronized Path sync(JobData jobData) {
-        if (!jobData.objectIdentifier().equals(objectIdentifier)) {
-            logger.info("downloading new source file");
-            deleteOldSourceZip(sourcePath);
-            this.sourcePath = getSourceZip(jobData);
-            logger.info("downloaded new source file");
+    public Path sync(JobData jobData) {
+        SourceKey sourceKey = SourceKey.of(jobData);
+        CacheEntry entry;
+        boolean download = false;
+        synchronized (this) {
+            entry = cache.get(sourceKey);
+            if (entry == null) {
+                entry = new CacheEntry();
+                cache.put(sourceKey, entry);
+                download = true;
+            }
+            entry.pins++;
+        }
+        try {
+            if (download) {
+                download(sourceKey, entry);
+            }
+            return createWorkspace(jobData, entry.template.join());
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException cause ? cause : e;
+        } finally {
+            List<Path> evicted;
+            synchronized (this) {
+                entry.pins--;
+                evicted = evict();
+            }
+            // deleting a template can take a while, so it is not done while other jobs wait for the lock
+            evicted.forEach(workspaceReaper::reap);
         }
-        this.objectIdentifier = jobData.objectIdentifier();
-        return extractSourceFiles(jobData, sourcePath);
     }
 
-    private Path extractSourceFiles(JobData jobData, Path sourcePath) {
+    private void download(SourceKey sourceKey, CacheEntry entry) {
         try {
-            Path sourceFilesDir = Files.createTempDirectory(jobData.distributionName() + "_" + jobData.stepName());
-            ZipUtils.unzip(sourcePath, sourceFilesDir);
-            return sourceFilesDir;
-        } catch (IOException e) {
-            throw new UncheckedIOException(e);
+            logger.info("downloading new source file for distribution " + sourceKey.distributionName());
+            Path template = extractTemplate(sourceKey);
+            long size = FileUtils.sizeOfDirectory(template.toFile());
+            synchronized (this) {
+                entry.size = size;
+            }
+            entry.template.complete(template);
+            logger.info("downloaded new source file for distribution " + sourceKey.distributionName());
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                cache.remove(sourceKey);
+            }
+            entry.template.completeExceptionally(e instanceof IOException ioException ? new UncheckedIOException(ioException) : e);
         }
     }
 
-    private void deleteOldSourceZip(Path oldSourcePath) {
-        if (oldSourcePath != null && oldSourcePath.toFile().delete()) {
-            logger.info("deleted old source");
+    /**
+     * Remove the least recently used templates that are not in use from the cache until it is within its limit.
+     *
+     * @return the directories of the removed templates, which the caller should delete
+     */
+    private List<Path> evict() {
+        List<Path> evicted = new ArrayList<>();
+        long cacheBytes = cache.values().stream().mapToLong(entry -> entry.size).sum();
+        Iterator<Map.Entry<SourceKey, CacheEntry>> iterator = cache.entrySet().iterator();
+        while (cacheBytes > maxCacheBytes && iterator.hasNext()) {
+            Map.Entry<SourceKey, CacheEntry> eldest = iterator.next();
+            CacheEntry entry = eldest.getValue();
+            if (entry.pins > 0 || !entry.template.isDone()) {
+                continue;
+            }
+            iterator.remove();
+            cacheBytes -= entry.size;
+            evicted.add(cacheDirectory.resolve(eldest.getKey().fileName()));
+            logger.info("deleting cached source file for distribution " + eldest.getKey().distributionName());
         }
+        return evicted;
     }
 
-    private Path getSourceZip(JobData jobData) {
-        File file = new File("attini_dist_source.zip");
-
+    private Path createWorkspace(JobData jobData, Path template) {
+        Path workspace = null;
         try {
-            Files.deleteIfExists(file.toPath());
+            long start = System.currentTimeMillis();
+            workspace = Files.createTempDirectory(jobData.distributionName() + "_" + jobData.stepName());
+            WorkspaceCloner.Strategy strategy = workspaceCloner.clone(template, workspace);
+            logger.info("Created source files for step " + jobData.stepName() + " with strategy " + strategy + " in " + (System.currentTimeMillis() - start) + " ms");
+            return workspace;
         } catch (IOException e) {
             throw new UncheckedIOException(e);
+        } catch (RuntimeException e) {
+            FileUtils.deleteQuietly(workspace.toFile());
+            throw e;
         }
+    }
 
-        String key = jobData.sourcePrefix() + "/" + jobData.distributionName() + ".zip";
-
-        s3Client.getObject(GetObjectRequest.builder().bucket(jobData.sourceBucket()).key(key).build(),
-                           ResponseTransformer.toFile(file));
-        return file.toPath();
+    /**
+     * Download and extract the zip into a temporary directory and move it into the cache, so that a cached template
+     * is always complete. The zip is deleted afterwards, the template is all that is needed.
+     * <p>
+     * With ATTINI_SOURCE_STREAMING_EXTRACT the zip is extracted while it is downloaded, and written to disk alongside
+     * for the checks that need its central directory. Otherwise it is downloaded first, in parallel parts.
+     */
+    private Path extractTemplate(SourceKey sourceKey) throws IOException {
+        Path template = createCacheDirectory().resolve(sourceKey.fileName());
+        Path partDirectory = template.resolveSibling(template.getFileName() + ".part");
+        Path sourceZip = template.resolveSibling(template.getFileName() + ".zip");
+        FileUtils.deleteQuietly(partDirectory.toFile());
+        FileUtils.deleteQuietly(template.toFile());
+        Files.deleteIfExists(sourceZip);
+        try {
+            if (streamingExtract) {
+                ResponseInputStream<GetObjectResponse> inputStream = s3Downloader.stream(sourceKey.bucket(), sourceKey.objectKey());
+                try (inputStream) {
+                    zipExtractor.extract(inputStream, sourceZip, partDirectory);
+                } catch (IOException | RuntimeException e) {
+                    // do not read the rest of the object just to close the connection
+                    inputStream.abort();
+                    throw e;
+                }
+            } else {
+                s3Downloader.download(sourceKey.bucket(), sourceKey.objectKey(), sourceZip);
+                zipExtractor.extract(sourceZip, partDirectory);
+            }
+            return Files.move(partDirectory, template, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            FileUtils.deleteQuietly(partDirectory.toFile());
+            Files.deleteIfExists(sourceZip);
+        }
     }
 
+    /**
+     * Create the cache directory the first time it is used. Files left by an earlier run are deleted, since they are
+     * not accounted for in the cache.
+     */
+    private synchronized Path createCacheDirectory() throws IOException {
+        if (!cacheDirectoryCreated) {
+            FileUtils.deleteQuietly(cacheDirectory.toFile());
+            Files.createDirectories(cacheDirectory);
+            cacheDirectoryCreated = true;
+        }
+        return cacheDirectory;
+    }
 }
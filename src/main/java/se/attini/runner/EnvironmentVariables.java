@@ -1,6 +1,8 @@
 package se.attini.runner;
 
 
+import java.util.Arrays;
+import java.util.Locale;
 import java.util.Optional;
 import jakarta.enterprise.context.ApplicationScoped;
 
@@ -13,6 +15,20 @@ public class EnvironmentVariables {
 
     private static final int IDLE_TTL_DEFAULT = 3600;
 
+    private static final int OWNERSHIP_CHECK_INTERVAL_DEFAULT = 30;
+
+    private static final int LOG_SPOOL_LIMIT_DEFAULT = 1024;
+
+    private static final int MAX_LINE_LENGTH_DEFAULT = 256 * 1024;
+
+    private static final int SOURCE_CACHE_LIMIT_DEFAULT = 2048;
+
+    private static final int SOURCE_EXTRACT_LIMIT_DEFAULT = 10240;
+
+    private static final int S3_DOWNLOAD_PART_SIZE_DEFAULT = 8;
+
+    private static final int S3_DOWNLOAD_CONCURRENCY_DEFAULT = 8;
+
     private static final Logger logger = Logger.getLogger(EnvironmentVariables.class);
 
 
@@ -110,6 +126,182 @@ public class EnvironmentVariables {
         }
     }
 
+    public int getOwnershipCheckInterval(){
+        try {
+            if (System.getenv("ATTINI_OWNERSHIP_CHECK_INTERVAL") == null){
+                return OWNERSHIP_CHECK_INTERVAL_DEFAULT;
+            }
+            return Integer.parseInt(System.getenv("ATTINI_OWNERSHIP_CHECK_INTERVAL"));
+        } catch (NumberFormatException e) {
+            logger.warn("ATTINI_OWNERSHIP_CHECK_INTERVAL is not an integer, returning default value = " + OWNERSHIP_CHECK_INTERVAL_DEFAULT);
+            return OWNERSHIP_CHECK_INTERVAL_DEFAULT;
+        }
+    }
+
+    public JobExecutors.Mode getExecutorMode(){
+        return parseExecutorMode(System.getenv("ATTINI_EXECUTOR_MODE"));
+    }
+
+    static JobExecutors.Mode parseExecutorMode(String executorMode){
+        if (executorMode == null){
+            return JobExecutors.Mode.PLATFORM;
+        }
+        try {
+            return JobExecutors.Mode.valueOf(executorMode.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            logger.warn("ATTINI_EXECUTOR_MODE should be one of " + Arrays.toString(JobExecutors.Mode.values()) + ", returning default value = " + JobExecutors.Mode.PLATFORM);
+            return JobExecutors.Mode.PLATFORM;
+        }
+    }
+
+    public LogUploader.Mode getLogUploadMode(){
+        String logUploadMode = System.getenv("ATTINI_LOG_UPLOAD_MODE");
+        if (logUploadMode == null){
+            return LogUploader.Mode.WHOLE_FILE;
+        }
+        try {
+            return LogUploader.Mode.valueOf(logUploadMode.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            logger.warn("ATTINI_LOG_UPLOAD_MODE should be one of " + Arrays.toString(LogUploader.Mode.values()) + ", returning default value = " + LogUploader.Mode.WHOLE_FILE);
+            return LogUploader.Mode.WHOLE_FILE;
+        }
+    }
+
+    public boolean isLogReductionEnabled(){
+        return Boolean.parseBoolean(System.getenv("ATTINI_LOG_REDUCTION"));
+    }
+
+    public boolean isStreamingExtractEnabled(){
+        return Boolean.parseBoolean(System.getenv("ATTINI_SOURCE_STREAMING_EXTRACT"));
+    }
+
+    public boolean isResourceUsageOutputEnabled(){
+        return Boolean.parseBoolean(System.getenv("ATTINI_RESOURCE_USAGE_OUTPUT"));
+    }
+
+    public int getLogRateLimit(){
+        try {
+            if (System.getenv("ATTINI_LOG_RATE_LIMIT") == null){
+                return 0;
+            }
+            return Integer.parseInt(System.getenv("ATTINI_LOG_RATE_LIMIT"));
+        } catch (NumberFormatException e) {
+            logger.warn("ATTINI_LOG_RATE_LIMIT is not an integer, returning default value = 0");
+            return 0;
+        }
+    }
+
+    public int getLogSpoolLimit(){
+        try {
+            if (System.getenv("ATTINI_LOG_SPOOL_LIMIT_MB") == null){
+                return LOG_SPOOL_LIMIT_DEFAULT;
+            }
+            return Integer.parseInt(System.getenv("ATTINI_LOG_SPOOL_LIMIT_MB"));
+        } catch (NumberFormatException e) {
+            logger.warn("ATTINI_LOG_SPOOL_LIMIT_MB is not an integer, returning default value = " + LOG_SPOOL_LIMIT_DEFAULT);
+            return LOG_SPOOL_LIMIT_DEFAULT;
+        }
+    }
+
+    public int getSourceCacheLimit(){
+        try {
+            if (System.getenv("ATTINI_SOURCE_CACHE_LIMIT_MB") == null){
+                return SOURCE_CACHE_LIMIT_DEFAULT;
+            }
+            return Integer.parseInt(System.getenv("ATTINI_SOURCE_CACHE_LIMIT_MB"));
+        } catch (NumberFormatException e) {
+            logger.warn("ATTINI_SOURCE_CACHE_LIMIT_MB is not an integer, returning default value = " + SOURCE_CACHE_LIMIT_DEFAULT);
+            return SOURCE_CACHE_LIMIT_DEFAULT;
+        }
+    }
+
+    public int getSourceExtractLimit(){
+        try {
+            if (System.getenv("ATTINI_SOURCE_EXTRACT_LIMIT_MB") == null){
+                return SOURCE_EXTRACT_LIMIT_DEFAULT;
+            }
+            return Integer.parseInt(System.getenv("ATTINI_SOURCE_EXTRACT_LIMIT_MB"));
+        } catch (NumberFormatException e) {
+            logger.warn("ATTINI_SOURCE_EXTRACT_LIMIT_MB is not an integer, returning default value = " + SOURCE_EXTRACT_LIMIT_DEFAULT);
+            return SOURCE_EXTRACT_LIMIT_DEFAULT;
+        }
+    }
+
+    public int getS3DownloadPartSize(){
+        try {
+            if (System.getenv("ATTINI_S3_DOWNLOAD_PART_SIZE_MB") == null){
+                return S3_DOWNLOAD_PART_SIZE_DEFAULT;
+            }
+            int partSize = Integer.parseInt(System.getenv("ATTINI_S3_DOWNLOAD_PART_SIZE_MB"));
+            if (partSize < 1) {
+                logger.warn("ATTINI_S3_DOWNLOAD_PART_SIZE_MB is less than 1, returning default value = " + S3_DOWNLOAD_PART_SIZE_DEFAULT);
+                return S3_DOWNLOAD_PART_SIZE_DEFAULT;
+            }
+            return partSize;
+        } catch (NumberFormatException e) {
+            logger.warn("ATTINI_S3_DOWNLOAD_PART_SIZE_MB is not an integer, returning default value = " + S3_DOWNLOAD_PART_SIZE_DEFAULT);
+            return S3_DOWNLOAD_PART_SIZE_DEFAULT;
+        }
+    }
+
+    public int getS3DownloadConcurrency(){
+        try {
+            if (System.getenv("ATTINI_S3_DOWNLOAD_CONCURRENCY") == null){
+                return S3_DOWNLOAD_CONCURRENCY_DEFAULT;
+            }
+            return Integer.parseInt(System.getenv("ATTINI_S3_DOWNLOAD_CONCURRENCY"));
+        } catch (NumberFormatException e) {
+            logger.warn("ATTINI_S3_DOWNLOAD_CONCURRENCY is not an integer, returning default value = " + S3_DOWNLOAD_CONCURRENCY_DEFAULT);
+            return S3_DOWNLOAD_CONCURRENCY_DEFAULT;
+        }
+    }
+
+    public int getMaxLineLength(){
+        try {
+            if (System.getenv("ATTINI_MAX_LINE_LENGTH") == null){
+                return MAX_LINE_LENGTH_DEFAULT;
+            }
+            int maxLineLength = Integer.parseInt(System.getenv("ATTINI_MAX_LINE_LENGTH"));
+            if (maxLineLength < 1024) {
+                logger.warn("ATTINI_MAX_LINE_LENGTH is less than 1024, returning default value = " + MAX_LINE_LENGTH_DEFAULT);
+                return MAX_LINE_LENGTH_DEFAULT;
+            }
+            return maxLineLength;
+        } catch (NumberFormatException e) {
+            logger.warn("ATTINI_MAX_LINE_LENGTH is not an integer, returning default value = " + MAX_LINE_LENGTH_DEFAULT);
+            return MAX_LINE_LENGTH_DEFAULT;
+        }
+    }
+
+    public WorkspaceCloner.Strategy getWorkspaceStrategy(){
+        String workspaceStrategy = System.getenv("ATTINI_WORKSPACE_STRATEGY");
+        if (workspaceStrategy == null){
+            return WorkspaceCloner.Strategy.AUTO;
+        }
+        try {
+            return WorkspaceCloner.Strategy.valueOf(workspaceStrategy.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            logger.warn("ATTINI_WORKSPACE_STRATEGY should be one of " + Arrays.toString(WorkspaceCloner.Strategy.values()) + ", returning default value = " + WorkspaceCloner.Strategy.AUTO);
+            return WorkspaceCloner.Strategy.AUTO;
+        }
+    }
+
+    public Integer getLogTailPort(){
+        try {
+            if (System.getenv("ATTINI_LOG_TAIL_PORT") == null){
+                return null;
+            }
+            return Integer.parseInt(System.getenv("ATTINI_LOG_TAIL_PORT"));
+        } catch (NumberFormatException e) {
+            logger.warn("ATTINI_LOG_TAIL_PORT is not an integer, live log streaming is disabled");
+            return null;
+        }
+    }
+
+    public String getLogTailHost(){
+        return System.getenv("ATTINI_LOG_TAIL_HOST") != null ? System.getenv("ATTINI_LOG_TAIL_HOST") : "127.0.0.1";
+    }
+
     public String getAccountId() {
         return System.getenv("ATTINI_AWS_ACCOUNT");
     }
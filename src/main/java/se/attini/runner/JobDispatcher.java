@@ -0,0 +1,426 @@
+package se.attini.runner;
+
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+import org.jboss.logging.Logger;
+
+import software.amazon.awssdk.services.dynamodb.model.DynamoDbException;
+import software.amazon.awssdk.services.sqs.SqsClient;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchRequest;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchResponse;
+import software.amazon.awssdk.services.sqs.model.Message;
+import software.amazon.awssdk.services.sqs.model.SqsException;
+
+/**
+ * Validates received messages and starts jobs for them. Messages are handed over by the {@link SqsListener}
+ * and buffered, so the listener can go back to polling while the messages are checked against the container
+ * metadata and DynamoDB on the job-dispatch-thread. Every buffered message holds a {@link JobSlots} slot, which
+ * is either passed on to the job started for the message or released if the message is rejected.
+ */
+@ApplicationScoped
+public class JobDispatcher {
+
+    private static final Logger logger = Logger.getLogger(JobDispatcher.class);
+
+    /**
+     * The maximum number of entries SQS accepts in a single DeleteMessageBatch call.
+     */
+    private static final int MAX_DELETE_BATCH_SIZE = 10;
+
+    private final EnvironmentVariables environmentVariables;
+    private final Shutdown shutdown;
+    private final JobCreator scriptFileCreator;
+    private final ScriptRunner scriptRunner;
+    private final SqsClient sqsClient;
+    private final ContainerMetadataFacade containerMetadataFacade;
+    private final DistributionSourceFiles distributionSourceFiles;
+    private final SfnFacade sfnFacade;
+    private final S3Logger s3Logger;
+    private final JobSlots jobSlots;
+    private final DeploymentExecutionCache deploymentExecutionCache;
+    private final RunnerOwnership runnerOwnership;
+    private final WorkspaceReaper workspaceReaper;
+    private final ExecutorService executorService;
+    private final ExecutorService finalizeExecutorService;
+    private final BlockingQueue<List<Message>> receivedMessages;
+    private Thread dispatchThread;
+
+    @Inject
+    public JobDispatcher(EnvironmentVariables environmentVariables,
+                         Shutdown shutdown,
+                         JobCreator scriptFileCreator,
+                         ScriptRunner scriptRunner,
+                         SqsClient sqsClient,
+                         ContainerMetadataFacade containerMetadataFacade,
+                         DistributionSourceFiles distributionSourceFiles,
+                         SfnFacade sfnFacade,
+                         S3Logger s3Logger,
+                         JobSlots jobSlots,
+                         DeploymentExecutionCache deploymentExecutionCache,
+                         RunnerOwnership runnerOwnership,
+                         WorkspaceReaper workspaceReaper) {
+        this.environmentVariables = requireNonNull(environmentVariables, "environmentVariables");
+        this.shutdown = requireNonNull(shutdown, "shutdown");
+        this.scriptFileCreator = requireNonNull(scriptFileCreator, "scriptFileCreator");
+        this.scriptRunner = requireNonNull(scriptRunner, "scriptRunner");
+        this.sqsClient = requireNonNull(sqsClient, "sqsClient");
+        this.containerMetadataFacade = requireNonNull(containerMetadataFacade, "containerMetadataFacade");
+        this.distributionSourceFiles = distributionSourceFiles;
+        this.sfnFacade = requireNonNull(sfnFacade, "sfnFacade");
+        this.s3Logger = requireNonNull(s3Logger, "s3Logger");
+        this.jobSlots = requireNonNull(jobSlots, "jobSlots");
+        this.deploymentExecutionCache = requireNonNull(deploymentExecutionCache, "deploymentExecutionCache");
+        this.runnerOwnership = requireNonNull(runnerOwnership, "runnerOwnership");
+        this.workspaceReaper = requireNonNull(workspaceReaper, "workspaceReaper");
+        this.executorService = JobExecutors.create(environmentVariables.getExecutorMode(),
+                                                   "job-thread",
+                                                   jobSlots.getCapacity());
+        this.finalizeExecutorService = createFinalizeExecutorService(jobSlots.getCapacity());
+        this.receivedMessages = new LinkedBlockingQueue<>(jobSlots.getCapacity());
+    }
+
+    /**
+     * Finalizing a job mostly waits for S3, Step Functions and the file system, so it runs in its own pool to let
+     * the job slot be reused as soon as the script has exited. If finalization falls too far behind, the job thread
+     * waits for room in the queue while it still holds the job slot, which keeps new jobs from starting until
+     * finalization has caught up. If the pool is shut down while the job thread waits, the job is taken back out of
+     * the queue and finalized on the job thread, since the pool might never run it.
+     */
+    static ExecutorService createFinalizeExecutorService(int poolSize) {
+        AtomicInteger threadCounter = new AtomicInteger();
+        return new ThreadPoolExecutor(poolSize,
+                                      poolSize,
+                                      0,
+                                      TimeUnit.MILLISECONDS,
+                                      new ArrayBlockingQueue<>(poolSize),
+                                      runnable -> new Thread(runnable,
+                                                             "job-finalize-thread-" + threadCounter.incrementAndGet()),
+                                      (runnable, executor) -> {
+                                          if (executor.isShutdown()) {
+                                              throw new RejectedExecutionException("Finalize pool is shut down");
+                                          }
+                                          try {
+                                              executor.getQueue().put(runnable);
+                                          } catch (InterruptedException e) {
+                                              Thread.currentThread().interrupt();
+                                              throw new RejectedExecutionException("Interrupted while waiting for the finalize pool", e);
+                                          }
+                                          if (executor.isShutdown() && executor.getQueue().remove(runnable)) {
+                                              runnable.run();
+                                          }
+                                      });
+    }
+
+    /**
+     * Buffer received messages for validation. Each message must hold a slot acquired from {@link JobSlots} and be
+     * counted as a queued job.
+     */
+    public void submit(List<Message> messages) {
+        startDispatchThread();
+        if (!receivedMessages.offer(messages)) {
+            logger.warn("Dispatch buffer is full, " + messages.size() + " messages will be retried when they become visible again");
+            jobSlots.releaseQueued(messages.size());
+        }
+    }
+
+    private synchronized void startDispatchThread() {
+        if (dispatchThread != null) {
+            return;
+        }
+        dispatchThread = new Thread(() -> {
+            while (!shutdown.shouldExit()) {
+                try {
+                    List<Message> messages = new ArrayList<>(receivedMessages.take());
+                    List<List<Message>> bufferedBatches = new ArrayList<>();
+                    receivedMessages.drainTo(bufferedBatches);
+                    bufferedBatches.forEach(messages::addAll);
+                    dispatch(messages);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (Exception e) {
+                    logger.error(e.getMessage(), e);
+                }
+            }
+        }, "job-dispatch-thread");
+        dispatchThread.setDaemon(true);
+        dispatchThread.start();
+    }
+
+    /**
+     * Validate the messages and start a job for every message that belongs to this runner. The slots held by
+     * messages that are rejected are released.
+     */
+    void dispatch(List<Message> messages) {
+        int startedJobs = 0;
+        try {
+            startedJobs = startJobs(messages);
+        } finally {
+            jobSlots.releaseQueued(messages.size() - startedJobs);
+        }
+    }
+
+    private int startJobs(List<Message> messages) {
+        ContainerMetadata metadata = containerMetadataFacade.refreshMetadata();
+
+        if (metadata.isTerminating()) {
+            logger.info("Container is stopping, will not process messages");
+            return 0;
+        }
+
+        try {
+            if (!runnerOwnership.isOwnedBy(metadata.taskId())) {
+                logger.warn("TaskId differ between attini resource and container metadata, will terminate container");
+                shutdown.shutdown();
+                return 0;
+            }
+        } catch (DynamoDbException e) {
+            messages.stream()
+                    .map(MessageConverter::toJobData)
+                    .forEach(jobData -> sfnFacade.sendTaskFailed(jobData.responseToken(),
+                                                                 "IllegalAccessException",
+                                                                 "The runners IAM role does not have permission to read from the " + environmentVariables.getResourceStatesTable() + " dynamodb table. Will terminate the container"));
+            shutdown.shutdown();
+            return 0;
+        }
+
+        Map<Boolean, List<JobData>> jobsByExecution = messages.stream()
+                                                              .map(MessageConverter::toJobData)
+                                                              .collect(Collectors.partitioningBy(deploymentExecutionCache::isCurrentExecution));
+        List<JobData> staleJobs = jobsByExecution.get(false);
+        staleJobs.forEach(jobData -> logger.info(
+                "Received job but execution Id does not match with current run, will delete from queue"));
+
+        List<JobData> currentJobs = jobsByExecution.get(true)
+                                                   .stream()
+                                                   .filter(jobData -> {
+                                                       boolean hasSameConfig = jobData.jobConfigHashCode() == environmentVariables.getConfigurationHashCode();
+                                                       if (!hasSameConfig) {
+                                                           logger.info("Detected change of container config, will not process message");
+                                                       }
+                                                       return hasSameConfig;
+                                                   })
+                                                   .toList();
+
+        Set<String> deletedReceiptHandles = deleteMessages(environmentVariables.getQueueUrl(),
+                                                           Stream.concat(staleJobs.stream(), currentJobs.stream())
+                                                                 .toList());
+
+        List<JobData> jobsToStart = currentJobs.stream()
+                                               .filter(jobData -> {
+                                                   boolean deleted = deletedReceiptHandles.contains(jobData.receiptHandle());
+                                                   if (!deleted) {
+                                                       logger.warn("Could not delete message for step " + jobData.stepName() + " from queue, will not start job. The message will be retried when it becomes visible again");
+                                                   }
+                                                   return deleted;
+                                               })
+                                               .toList();
+
+        List<CompletableFuture<Void>> jobs = jobsToStart.stream()
+                                                        .map(runJobAsync(metadata))
+                                                        .toList();
+
+        if (!jobs.isEmpty()) {
+            shutdown.scheduleShutdown(CompletableFuture.allOf(jobs.toArray(CompletableFuture[]::new)));
+        }
+        return jobs.size();
+    }
+
+    private Function<JobData, CompletableFuture<Void>> runJobAsync(ContainerMetadata containerMetadata) {
+        return jobData -> CompletableFuture.supplyAsync(() -> {
+                                               jobSlots.jobStarted();
+                                               JobResult jobResult;
+                                               try {
+                                                   jobResult = executeJob(jobData);
+                                               } catch (RuntimeException e) {
+                                                   jobSlots.jobFinished();
+                                                   throw e;
+                                               }
+                                               return handOffFinalize(containerMetadata, jobResult);
+                                           }, executorService)
+                                           .thenCompose(Function.identity());
+    }
+
+    /**
+     * Hand the job over to the finalize pool and free its slot once the pool has accepted it. If the pool can not
+     * accept it, the job is finalized on the job thread before the slot is freed.
+     *
+     * @return a future that completes when the job has been finalized
+     */
+    private CompletableFuture<Void> handOffFinalize(ContainerMetadata containerMetadata, JobResult jobResult) {
+        CompletableFuture<Void> finalized = new CompletableFuture<>();
+        Runnable finalize = () -> {
+            try {
+                finalizeJob(containerMetadata, jobResult);
+            } finally {
+                finalized.complete(null);
+            }
+        };
+        try {
+            finalizeExecutorService.execute(finalize);
+        } catch (RejectedExecutionException e) {
+            finalize.run();
+        } finally {
+            jobSlots.jobFinished();
+        }
+        return finalized;
+    }
+
+    /**
+     * Run the script for a job. Any error is captured in the result so that the job is always finalized.
+     */
+    private JobResult executeJob(JobData jobData) {
+        logger.info("Starting job for message = " + jobData.input());
+        PathRegistry pathRegistry = PathRegistry.create(workspaceReaper);
+        Path outputFile = null;
+        try {
+            outputFile = pathRegistry.register(createTempJsonFile("output"));
+            Path inputFile = pathRegistry.register(createInputFile(jobData));
+            Path sourceDirectory = pathRegistry.register(distributionSourceFiles.sync(jobData));
+            Path scriptFile = pathRegistry.register(scriptFileCreator.createScriptFile(jobData,
+                                                                                       inputFile,
+                                                                                       outputFile,
+                                                                                       sourceDirectory));
+            ScriptResult scriptResult = scriptRunner.runScript(scriptFile,
+                                                               environmentVariables.getScriptTimeout(3600),
+                                                               jobData);
+            return new JobResult(jobData,
+                                 pathRegistry,
+                                 outputFile,
+                                 scriptResult.exitCode(),
+                                 scriptResult.resourceUsage(),
+                                 null);
+        } catch (Exception e) {
+            return new JobResult(jobData, pathRegistry, outputFile, null, null, e);
+        }
+    }
+
+    /**
+     * Sync the job log, report the result to the Step Function and delete the job files.
+     */
+    private void finalizeJob(ContainerMetadata containerMetadata, JobResult jobResult) {
+        JobData jobData = jobResult.jobData();
+        try {
+            s3Logger.syncToS3(jobData);
+            if (jobResult.error() instanceof ScriptExecutionException e) {
+                logger.error("script failed to execute", e);
+                sfnFacade.sendTaskFailed(jobData.responseToken(),
+                                         "ScriptExecutionError",
+                                         e.getMessage() + containerMetadata.getLogUrl()
+                                                                           .map(logUrl -> ", see complete logs at: " + logUrl)
+                                                                           .orElse(""));
+            } else if (jobResult.error() != null) {
+                throw jobResult.error();
+            } else if (jobResult.exitCode() == 0) {
+                logger.info("Script finished successfully");
+                sfnFacade.setTaskSuccess(jobData,
+                                         jobResult.outputFile(),
+                                         environmentVariables.isResourceUsageOutputEnabled() ? jobResult.resourceUsage() : null);
+            } else {
+                logger.error("Script exited with code " + jobResult.exitCode());
+                String logPathMessage = containerMetadata.getLogUrl()
+                                                         .map(logUrl -> ", see complete logs at: " + logUrl)
+                                                         .orElse("");
+                sfnFacade.sendTaskFailed(jobData.responseToken(),
+                                         "ScriptExecutionError",
+                                         "Script exited with code " + jobResult.exitCode() + logPathMessage);
+            }
+        } catch (Exception e) {
+            logger.error("Failed to run task", e);
+            sfnFacade.sendTaskFailed(jobData.responseToken(), "RuntimeError", e.getMessage());
+        } finally {
+            jobResult.pathRegistry().deletePaths();
+        }
+    }
+
+    private Path createInputFile(JobData jobData) {
+        Path inputFile = createTempJsonFile("input");
+        try {
+            BufferedWriter fileWriter = new BufferedWriter(new FileWriter(inputFile.toFile()));
+            fileWriter.write(jobData.input());
+            fileWriter.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return inputFile;
+    }
+
+    private Path createTempJsonFile(String name) {
+        try {
+            return Files.createTempFile(name, ".json");
+        } catch (IOException e) {
+            throw new UncheckedIOException("could not create " + name + " file", e);
+        }
+    }
+
+    private record JobResult(JobData jobData,
+                             PathRegistry pathRegistry,
+                             Path outputFile,
+                             Integer exitCode,
+                             ResourceUsage resourceUsage,
+                             Exception error) {
+    }
+
+    /**
+     * Delete the messages for the given jobs from the queue using as few DeleteMessageBatch calls as possible.
+     *
+     * @return the receipt handles of the messages that were successfully deleted
+     */
+    private Set<String> deleteMessages(String queueUrl, List<JobData> jobs) {
+        Set<String> deletedReceiptHandles = new HashSet<>();
+        for (int batchStart = 0; batchStart < jobs.size(); batchStart += MAX_DELETE_BATCH_SIZE) {
+            List<JobData> batch = jobs.subList(batchStart, Math.min(jobs.size(), batchStart + MAX_DELETE_BATCH_SIZE));
+            List<DeleteMessageBatchRequestEntry> entries = IntStream.range(0, batch.size())
+                                                                    .mapToObj(index -> DeleteMessageBatchRequestEntry.builder()
+                                                                                                                     .id(String.valueOf(index))
+                                                                                                                     .receiptHandle(batch.get(index)
+                                                                                                                                         .receiptHandle())
+                                                                                                                     .build())
+                                                                    .toList();
+            try {
+                DeleteMessageBatchResponse response = sqsClient.deleteMessageBatch(DeleteMessageBatchRequest.builder()
+                                                                                                             .queueUrl(queueUrl)
+                                                                                                             .entries(entries)
+                                                                                                             .build());
+                response.successful()
+                        .forEach(entry -> deletedReceiptHandles.add(batch.get(Integer.parseInt(entry.id()))
+                                                                         .receiptHandle()));
+                response.failed()
+                        .forEach(entry -> logger.warn("Failed to delete message for step " + batch.get(Integer.parseInt(
+                                entry.id())).stepName() + " from queue, code = " + entry.code() + ", message = " + entry.message()));
+            } catch (SqsException e) {
+                logger.error("Failed to delete " + batch.size() + " messages from queue, message = " + e.getMessage());
+            }
+        }
+        return deletedReceiptHandles;
+    }
+}
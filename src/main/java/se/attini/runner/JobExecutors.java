@@ -0,0 +1,116 @@
+package se.attini.runner;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Creates the executors used to run jobs and pump their output. The kind of executor is configured with the
+ * ATTINI_EXECUTOR_MODE environment variable.
+ * <p>
+ * Jobs mostly block on the child process and on pipe reads, so in the VIRTUAL and LIGHTWEIGHT modes every task
+ * gets its own cheap thread instead of a slot in a fixed pool. The number of concurrent jobs is still limited
+ * by {@link JobSlots}.
+ * <p>
+ * Virtual threads are only available when running on Java 21 or later. The runner is compiled for Java 17, so
+ * they are looked up at runtime, and the LIGHTWEIGHT mode is used when they are not available, for example in a
+ * native image built with an older GraalVM.
+ */
+public final class JobExecutors {
+
+    private static final Logger logger = Logger.getLogger(JobExecutors.class);
+
+    private static final long LIGHTWEIGHT_STACK_SIZE = 512 * 1024;
+
+    public enum Mode {
+        /**
+         * A fixed pool of platform threads, one per concurrent job.
+         */
+        PLATFORM,
+        /**
+         * One virtual thread per task.
+         */
+        VIRTUAL,
+        /**
+         * One platform thread with a small stack per task, reused while idle.
+         */
+        LIGHTWEIGHT
+    }
+
+    private JobExecutors() {
+    }
+
+    /**
+     * @param mode       the kind of executor to create, PLATFORM if null
+     * @param threadName the name prefix of the threads created by the executor
+     * @param poolSize   the number of threads used in PLATFORM mode
+     */
+    public static ExecutorService create(Mode mode, String threadName, int poolSize) {
+        if (mode == Mode.VIRTUAL) {
+            ExecutorService virtualExecutor = createVirtualThreadExecutor(threadName);
+            if (virtualExecutor != null) {
+                return virtualExecutor;
+            }
+            logger.warn("Virtual threads are not supported by the current runtime, will use lightweight threads for " + threadName);
+            return createLightweightExecutor(threadName);
+        }
+        if (mode == Mode.LIGHTWEIGHT) {
+            return createLightweightExecutor(threadName);
+        }
+        return Executors.newFixedThreadPool(poolSize);
+    }
+
+    private static ExecutorService createLightweightExecutor(String threadName) {
+        AtomicInteger threadCounter = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(null,
+                                       runnable,
+                                       threadName + "-" + threadCounter.incrementAndGet(),
+                                       LIGHTWEIGHT_STACK_SIZE);
+            thread.setDaemon(true);
+            return thread;
+        };
+        return new ThreadPoolExecutor(0,
+                                      Integer.MAX_VALUE,
+                                      60,
+                                      TimeUnit.SECONDS,
+                                      new SynchronousQueue<>(),
+                                      threadFactory);
+    }
+
+    private static ExecutorService createVirtualThreadExecutor(String threadName) {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Class<?> virtualBuilderClass = Class.forName("java.lang.Thread$Builder$OfVirtual");
+            MethodHandle ofVirtual = lookup.findStatic(Thread.class,
+                                                       "ofVirtual",
+                                                       MethodType.methodType(virtualBuilderClass));
+            MethodHandle name = lookup.findVirtual(builderClass,
+                                                   "name",
+                                                   MethodType.methodType(builderClass, String.class, long.class));
+            MethodHandle factory = lookup.findVirtual(builderClass,
+                                                      "factory",
+                                                      MethodType.methodType(ThreadFactory.class));
+            MethodHandle newThreadPerTaskExecutor = lookup.findStatic(Executors.class,
+                                                                      "newThreadPerTaskExecutor",
+                                                                      MethodType.methodType(ExecutorService.class,
+                                                                                            ThreadFactory.class));
+            Object builder = name.invoke(ofVirtual.invoke(), threadName + "-", 1L);
+            ThreadFactory threadFactory = (ThreadFactory) factory.invoke(builder);
+            return (ExecutorService) newThreadPerTaskExecutor.invoke(threadFactory);
+        } catch (Throwable e) {
+            logger.debug("Could not create virtual thread executor: " + e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,467 @@
+package se.attini.runner;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.commons.io.output.CountingOutputStream;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import software.amazon.awssdk.core.sync.RequestBody;
+
+/**
+ * The local log of a single job. Every line is written as a JSON object on a line of its own, with the same format
+ * as before, but the file is kept open and the JSON is streamed into a buffer instead of being built as a tree.
+ * Jackson recycles its internal encoding buffers, so a line only allocates what the string itself needs.
+ * <p>
+ * A segmented sink starts a new file, a segment, every time it is flushed, so that segments that have been uploaded
+ * can be deleted with {@link #release(long)} while the job is still running. Offsets are positions in the whole log,
+ * across segments. Every byte written is accounted for in the {@link LogSpool} until its segment is deleted.
+ */
+final class JobLogSink implements AutoCloseable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final String fileName;
+    private final JsonFactory jsonFactory;
+    private final LogUploader uploader;
+    private final LogSpool logSpool;
+    private final boolean segmented;
+    private final Deque<Segment> closedSegments;
+    private final AtomicBoolean uploadScheduled;
+    private final ReentrantLock uploadLock;
+    private Path currentFile;
+    private CountingOutputStream currentStream;
+    private JsonGenerator generator;
+    private long currentOffset;
+    private long writtenBytes;
+    private long lastSync;
+    private long firstUnflushedTimestamp = -1;
+    private long lastTimestamp = -1;
+    private long truncatedLines;
+    private boolean truncating;
+    private boolean closed;
+
+    /**
+     * A file holding a part of the log.
+     *
+     * @param offset the position of the file's first byte in the log
+     */
+    record Segment(Path file, long offset, long length) {
+    }
+
+    /**
+     * The part of the log that had been written when the sink was flushed.
+     *
+     * @param length         the number of bytes in the log
+     * @param firstTimestamp the timestamp of the first line written since the previous flush, -1 if none
+     * @param lastTimestamp  the timestamp of the last line in the log, -1 if none
+     * @param segments       the files holding the part of the log that has not been released
+     */
+    record Snapshot(long length, long firstTimestamp, long lastTimestamp, List<Segment> segments) {
+
+        /**
+         * Open a range of the log. The segments may still be appended to, but not within the snapshot.
+         */
+        InputStream openRange(long offset, long rangeLength) throws IOException {
+            List<InputStream> streams = new ArrayList<>();
+            long end = offset + rangeLength;
+            try {
+                for (Segment segment : segments) {
+                    long segmentEnd = segment.offset() + segment.length();
+                    if (segmentEnd <= offset || segment.offset() >= end) {
+                        continue;
+                    }
+                    long start = Math.max(offset, segment.offset()) - segment.offset();
+                    long length = Math.min(end, segmentEnd) - segment.offset() - start;
+                    FileChannel channel = FileChannel.open(segment.file()).position(start);
+                    streams.add(new BoundedInputStream(Channels.newInputStream(channel), length));
+                }
+            } catch (IOException e) {
+                for (InputStream stream : streams) {
+                    stream.close();
+                }
+                throw e;
+            }
+            return new SequenceInputStream(Collections.enumeration(streams));
+        }
+
+        /**
+         * Create a request body with a range of the log.
+         */
+        RequestBody range(long offset, long rangeLength) {
+            return RequestBody.fromContentProvider(() -> {
+                try {
+                    return openRange(offset, rangeLength);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, rangeLength, "application/octet-stream");
+        }
+    }
+
+    private JobLogSink(String fileName,
+                       JsonFactory jsonFactory,
+                       LogUploader uploader,
+                       LogSpool logSpool,
+                       boolean segmented,
+                       long created) {
+        this.fileName = fileName;
+        this.jsonFactory = jsonFactory;
+        this.uploader = uploader;
+        this.logSpool = logSpool;
+        this.segmented = segmented;
+        this.closedSegments = new ArrayDeque<>();
+        this.lastSync = created;
+        this.uploadScheduled = new AtomicBoolean();
+        this.uploadLock = new ReentrantLock();
+    }
+
+    /**
+     * @param segmented true to start a new file on every flush, which should only be used if uploaded parts of the
+     *                  log are released
+     */
+    static JobLogSink create(String fileName,
+                             JsonFactory jsonFactory,
+                             LogUploader uploader,
+                             LogSpool logSpool,
+                             boolean segmented) {
+        JobLogSink logSink = new JobLogSink(fileName,
+                                            jsonFactory,
+                                            uploader,
+                                            logSpool,
+                                            segmented,
+                                            System.currentTimeMillis());
+        logSink.openSegment();
+        return logSink;
+    }
+
+    private void openSegment() {
+        try {
+            Path file = Files.createTempFile(fileName, ".log");
+            if (!segmented) {
+                file.toFile().deleteOnExit();
+            }
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            currentStream = new CountingOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel),
+                                                                              BUFFER_SIZE));
+            generator = jsonFactory.createGenerator(currentStream);
+            generator.setRootValueSeparator(null);
+            currentFile = file;
+            currentOffset = writtenBytes;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    synchronized void write(long timestamp, String line) {
+        if (closed) {
+            return;
+        }
+        try {
+            long before = startRecord(timestamp);
+            generator.writeStringField("data", line);
+            endRecord(timestamp, before);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Write a line given as UTF-8 bytes. A line of well-formed UTF-8 without characters that JSON requires to be
+     * escaped is copied into the JSON as it is. Other well-formed lines are escaped by Jackson without being
+     * decoded, and anything else is decoded with replacement characters first.
+     */
+    synchronized void write(long timestamp, byte[] line, int offset, int length) {
+        if (closed) {
+            return;
+        }
+        try {
+            long before = startRecord(timestamp);
+            generator.writeFieldName("data");
+            switch (scan(line, offset, length)) {
+                case PLAIN -> generator.writeRawUTF8String(line, offset, length);
+                case ESCAPE -> generator.writeUTF8String(line, offset, length);
+                case MALFORMED -> generator.writeString(new String(line, offset, length, StandardCharsets.UTF_8));
+            }
+            endRecord(timestamp, before);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private long startRecord(long timestamp) throws IOException {
+        if (currentFile == null) {
+            openSegment();
+        }
+        long before = currentBytes();
+        generator.writeStartObject();
+        generator.writeNumberField("timestamp", timestamp);
+        return before;
+    }
+
+    private void endRecord(long timestamp, long before) throws IOException {
+        generator.writeEndObject();
+        generator.writeRaw('\n');
+        long written = currentBytes() - before;
+        writtenBytes += written;
+        logSpool.add(written);
+        if (firstUnflushedTimestamp < 0) {
+            firstUnflushedTimestamp = timestamp;
+        }
+        lastTimestamp = timestamp;
+    }
+
+    enum Encoding {
+        /**
+         * Well-formed UTF-8 that can be copied into a JSON string as it is.
+         */
+        PLAIN,
+        /**
+         * Well-formed UTF-8 with quotes, backslashes or control characters.
+         */
+        ESCAPE,
+        MALFORMED
+    }
+
+    static Encoding scan(byte[] bytes, int offset, int length) {
+        Encoding encoding = Encoding.PLAIN;
+        int end = offset + length;
+        int i = offset;
+        while (i < end) {
+            int b = bytes[i];
+            if (b >= 0) {
+                if (b < 0x20 || b == '"' || b == '\\') {
+                    encoding = Encoding.ESCAPE;
+                }
+                i++;
+                continue;
+            }
+            b &= 0xFF;
+            int continuationBytes;
+            int min = 0x80;
+            int max = 0xBF;
+            if (b >= 0xC2 && b <= 0xDF) {
+                continuationBytes = 1;
+            } else if (b >= 0xE0 && b <= 0xEF) {
+                continuationBytes = 2;
+                if (b == 0xE0) {
+                    min = 0xA0;
+                } else if (b == 0xED) {
+                    max = 0x9F;
+                }
+            } else if (b >= 0xF0 && b <= 0xF4) {
+                continuationBytes = 3;
+                if (b == 0xF0) {
+                    min = 0x90;
+                } else if (b == 0xF4) {
+                    max = 0x8F;
+                }
+            } else {
+                return Encoding.MALFORMED;
+            }
+            if (i + continuationBytes >= end) {
+                return Encoding.MALFORMED;
+            }
+            int second = bytes[i + 1] & 0xFF;
+            if (second < min || second > max) {
+                return Encoding.MALFORMED;
+            }
+            for (int j = 2; j <= continuationBytes; j++) {
+                if ((bytes[i + j] & 0xC0) != 0x80) {
+                    return Encoding.MALFORMED;
+                }
+            }
+            i += continuationBytes + 1;
+        }
+        return encoding;
+    }
+
+    private long currentBytes() {
+        return currentStream.getByteCount() + generator.getOutputBuffered();
+    }
+
+    /**
+     * Write any buffered lines to disk so that they can be uploaded. A segmented sink closes its current segment.
+     *
+     * @return the part of the log written so far. Lines written later are appended after it, so the snapshot can be
+     * uploaded while the job keeps logging.
+     */
+    synchronized Snapshot flush() {
+        try {
+            List<Segment> segments = new ArrayList<>(closedSegments);
+            if (currentFile != null && !closed) {
+                if (segmented) {
+                    closeSegment();
+                    segments.add(closedSegments.peekLast());
+                } else {
+                    generator.flush();
+                    segments.add(new Segment(currentFile, currentOffset, writtenBytes - currentOffset));
+                }
+            }
+            Snapshot snapshot = new Snapshot(writtenBytes, firstUnflushedTimestamp, lastTimestamp, segments);
+            firstUnflushedTimestamp = -1;
+            return snapshot;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void closeSegment() throws IOException {
+        generator.close();
+        closedSegments.addLast(new Segment(currentFile, currentOffset, writtenBytes - currentOffset));
+        currentFile = null;
+    }
+
+    /**
+     * Delete the segments that only hold the log before the given offset, typically because they have been uploaded.
+     */
+    synchronized void release(long offset) {
+        while (!closedSegments.isEmpty()) {
+            Segment segment = closedSegments.peekFirst();
+            if (segment.offset() + segment.length() > offset) {
+                return;
+            }
+            closedSegments.removeFirst();
+            deleteSegment(segment);
+        }
+    }
+
+    private void deleteSegment(Segment segment) {
+        try {
+            Files.deleteIfExists(segment.file());
+        } catch (IOException ignored) {
+            // the temp directory is cleaned up with the task
+        }
+        logSpool.release(segment.length());
+    }
+
+    /**
+     * Stop writing lines until {@link #resume(long)} is called, because the log spool is full. The line passed to
+     * the sink when it is truncating is counted as not logged.
+     *
+     * @return false if the sink was already truncating
+     */
+    synchronized boolean truncate() {
+        truncatedLines++;
+        if (truncating) {
+            return false;
+        }
+        truncating = true;
+        return true;
+    }
+
+    synchronized boolean isTruncating() {
+        return truncating;
+    }
+
+    /**
+     * Start writing lines again, after a record saying how many lines were not written.
+     */
+    synchronized void resume(long timestamp) {
+        if (!truncating) {
+            return;
+        }
+        truncating = false;
+        write(timestamp, "[" + truncatedLines + " lines were not logged because the local log spool was full]");
+        truncatedLines = 0;
+    }
+
+    /**
+     * @return true if at least the given number of milliseconds has passed since the last sync. If so, the sync
+     * time is moved to now, so that only one caller syncs.
+     */
+    synchronized boolean shouldSync(long now, long intervalMillis) {
+        if (now - lastSync < intervalMillis) {
+            return false;
+        }
+        lastSync = now;
+        return true;
+    }
+
+    /**
+     * Mark the sink as having an upload scheduled.
+     *
+     * @return false if an upload was already scheduled, in which case the new request is covered by it
+     */
+    boolean scheduleUpload() {
+        return uploadScheduled.compareAndSet(false, true);
+    }
+
+    /**
+     * Called when a scheduled upload starts, so that lines written after the upload's snapshot schedule a new
+     * upload.
+     */
+    void uploadStarted() {
+        uploadScheduled.set(false);
+    }
+
+    /**
+     * Held while uploading, so that only one upload of the sink runs at a time and a background upload of an
+     * older snapshot can not overwrite the final upload.
+     */
+    ReentrantLock uploadLock() {
+        return uploadLock;
+    }
+
+    synchronized boolean isClosed() {
+        return closed;
+    }
+
+    boolean isSegmented() {
+        return segmented;
+    }
+
+    LogUploader getUploader() {
+        return uploader;
+    }
+
+    /**
+     * Close the current file. A record is written first if lines were not logged because the log spool was full.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        resume(System.currentTimeMillis());
+        closed = true;
+        if (currentFile != null) {
+            try {
+                closeSegment();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Close the sink and delete all its files.
+     */
+    synchronized void delete() {
+        try {
+            close();
+        } finally {
+            while (!closedSegments.isEmpty()) {
+                deleteSegment(closedSegments.removeFirst());
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package se.attini.runner;
+
+import static java.util.Objects.requireNonNull;
+
+import java.time.Duration;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+/**
+ * Admission control for jobs. A slot is taken before messages are received from the queue and is held
+ * until the job is done, so the runner never receives more jobs than it can run at the same time.
+ * The number of slots is configured by the ATTINI_MAX_CONCURRENT_JOBS environment variable.
+ */
+@ApplicationScoped
+public class JobSlots {
+
+    private final int capacity;
+    private final Semaphore semaphore;
+    private final AtomicInteger queuedJobs;
+    private final AtomicInteger runningJobs;
+    private final AtomicLong lastWaitNanos;
+
+    @Inject
+    public JobSlots(EnvironmentVariables environmentVariables) {
+        requireNonNull(environmentVariables, "environmentVariables");
+        this.capacity = environmentVariables.getJobConcurrency();
+        this.semaphore = new Semaphore(capacity, true);
+        this.queuedJobs = new AtomicInteger();
+        this.runningJobs = new AtomicInteger();
+        this.lastWaitNanos = new AtomicLong();
+    }
+
+    /**
+     * Wait for at least one free slot, then take as many of the remaining free slots as possible without waiting.
+     *
+     * @param maxSlots the maximum number of slots to take
+     * @param timeout  how long to wait for the first slot
+     * @param unit     the unit of the timeout
+     * @return the number of slots taken, 0 if no slot became free before the timeout
+     */
+    public int acquire(int maxSlots, long timeout, TimeUnit unit) throws InterruptedException {
+        long start = System.nanoTime();
+        boolean acquired = semaphore.tryAcquire(timeout, unit);
+        lastWaitNanos.set(System.nanoTime() - start);
+        if (!acquired) {
+            return 0;
+        }
+        int slots = 1;
+        while (slots < maxSlots && semaphore.tryAcquire()) {
+            slots++;
+        }
+        return slots;
+    }
+
+    /**
+     * Give back slots that were acquired but not used to receive a job.
+     */
+    public void release(int slots) {
+        if (slots > 0) {
+            semaphore.release(slots);
+        }
+    }
+
+    /**
+     * Mark jobs as received and waiting to start. Each job must hold a slot.
+     */
+    public void jobsQueued(int jobs) {
+        queuedJobs.addAndGet(jobs);
+    }
+
+    /**
+     * Give back the slots of received jobs that will not be started.
+     */
+    public void releaseQueued(int jobs) {
+        if (jobs > 0) {
+            queuedJobs.addAndGet(-jobs);
+            semaphore.release(jobs);
+        }
+    }
+
+    /**
+     * Mark a received job as running.
+     */
+    public void jobStarted() {
+        queuedJobs.decrementAndGet();
+        runningJobs.incrementAndGet();
+    }
+
+    /**
+     * Mark a started job as done and free its slot.
+     */
+    public void jobFinished() {
+        runningJobs.decrementAndGet();
+        semaphore.release();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getRunningJobs() {
+        return runningJobs.get();
+    }
+
+    /**
+     * @return the number of jobs that have been received but have not started running yet. Slots that are held
+     * while waiting for messages are not counted.
+     */
+    public int getQueueDepth() {
+        return queuedJobs.get();
+    }
+
+    /**
+     * @return how long the last call to {@link #acquire(int, long, TimeUnit)} waited for a free slot
+     */
+    public Duration getLastWaitTime() {
+        return Duration.ofNanos(lastWaitNanos.get());
+    }
+}
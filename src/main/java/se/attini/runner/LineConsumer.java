@@ -0,0 +1,11 @@
+package se.attini.runner;
+
+/**
+ * Receives lines of output as UTF-8 bytes, without the line terminator. The buffer is only valid during the call,
+ * since it is reused for the next line, so a consumer that keeps the line has to copy it.
+ */
+@FunctionalInterface
+public interface LineConsumer {
+
+    void accept(byte[] buffer, int offset, int length);
+}
@@ -0,0 +1,53 @@
+package se.attini.runner;
+
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
+import io.quarkus.runtime.annotations.RegisterForReflection;
+
+/**
+ * Describes a log uploaded in chunks. The chunks are stored next to the manifest and together contain the log
+ * file in order. The first and last timestamps of the chunks work as an index, so that a reader looking for a time
+ * range only has to download the chunks that overlap it, see {@link LogReader}.
+ *
+ * @param complete true if the job is done and no more chunks will be added
+ */
+@RegisterForReflection
+@JsonIgnoreProperties(ignoreUnknown = true)
+public record LogManifest(int version, boolean complete, List<Chunk> chunks) {
+
+    public static final int VERSION = 1;
+
+    public static final String GZIP_ENCODING = "gzip";
+
+    /**
+     * @param name           the name of the chunk object, relative to the manifest
+     * @param offset         the position of the chunk in the log file
+     * @param length         the number of bytes of the log file in the chunk
+     * @param storedLength   the size of the chunk object, which differs from length if the chunk is compressed
+     * @param encoding       {@value GZIP_ENCODING} if the chunk is compressed with gzip, null if not compressed
+     * @param firstTimestamp the timestamp of the first line in the chunk
+     * @param lastTimestamp  the timestamp of the last line in the chunk
+     */
+    @RegisterForReflection
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public record Chunk(String name,
+                        long offset,
+                        long length,
+                        long storedLength,
+                        String encoding,
+                        long firstTimestamp,
+                        long lastTimestamp) {
+
+        @JsonIgnore
+        public boolean isGzip() {
+            return GZIP_ENCODING.equals(encoding);
+        }
+
+        public boolean overlaps(long from, long to) {
+            return lastTimestamp >= from && firstTimestamp <= to;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package se.attini.runner;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+
+/**
+ * Reads job logs uploaded by the {@link S3Logger}, in any of the {@link LogUploader.Mode}s. For chunked logs only the
+ * chunks overlapping the requested time range are downloaded.
+ */
+@ApplicationScoped
+public class LogReader {
+
+    private final S3Downloader s3Downloader;
+    private final ObjectMapper objectMapper;
+
+    @Inject
+    public LogReader(S3Downloader s3Downloader, ObjectMapper objectMapper) {
+        this.s3Downloader = requireNonNull(s3Downloader, "s3Downloader");
+        this.objectMapper = requireNonNull(objectMapper, "objectMapper");
+    }
+
+    /**
+     * Read the lines of a log with a timestamp in the given range, in the order they were logged.
+     *
+     * @param bucket       the bucket the log was uploaded to
+     * @param key          the log key, the same for all upload modes
+     * @param from         the earliest timestamp to include, in epoch millis
+     * @param to           the latest timestamp to include, in epoch millis
+     * @param lineConsumer receives every matching line as the JSON object it was stored as
+     */
+    public void read(String bucket, String key, long from, long to, Consumer<String> lineConsumer) {
+        LogManifest manifest = getManifest(bucket, key);
+        if (manifest == null) {
+            readLines(getObject(bucket, key), false, from, to, lineConsumer);
+            return;
+        }
+        for (LogManifest.Chunk chunk : manifest.chunks()) {
+            if (chunk.overlaps(from, to)) {
+                boolean withinRange = chunk.firstTimestamp() >= from && chunk.lastTimestamp() <= to;
+                readLines(getObject(bucket, key + "/" + chunk.name()),
+                          chunk.isGzip(),
+                          withinRange ? Long.MIN_VALUE : from,
+                          withinRange ? Long.MAX_VALUE : to,
+                          lineConsumer);
+            }
+        }
+    }
+
+    private LogManifest getManifest(String bucket, String key) {
+        try (InputStream inputStream = getObject(bucket, key + "/" + ChunkedLogUploader.MANIFEST_NAME)) {
+            return objectMapper.readValue(inputStream, LogManifest.class);
+        } catch (NoSuchKeyException e) {
+            return null;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void readLines(InputStream object, boolean gzip, long from, long to, Consumer<String> lineConsumer) {
+        boolean filter = from != Long.MIN_VALUE || to != Long.MAX_VALUE;
+        try (InputStream inputStream = gzip ? new GZIPInputStream(object, 64 * 1024) : object;
+             BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!filter || isWithin(line, from, to)) {
+                    lineConsumer.accept(line);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private boolean isWithin(String line, long from, long to) throws IOException {
+        JsonNode timestamp = objectMapper.readTree(line).get("timestamp");
+        return timestamp != null && timestamp.asLong() >= from && timestamp.asLong() <= to;
+    }
+
+    private InputStream getObject(String bucket, String key) {
+        return s3Downloader.open(bucket, key);
+    }
+}
@@ -0,0 +1,167 @@
+package se.attini.runner;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Reduces the volume of a job's output before it is logged. Enabled with ATTINI_LOG_REDUCTION=true.
+ * <ul>
+ *     <li>A line with carriage returns, like a progress bar, is collapsed to the text after the last carriage
+ *     return, which is what a terminal would show.</li>
+ *     <li>Identical consecutive lines are folded into the first line and a record saying how many times it was
+ *     repeated.</li>
+ *     <li>If ATTINI_LOG_RATE_LIMIT is set, at most that many lines per second are logged, with a short burst
+ *     allowance. Lines over the limit are dropped and a record saying how many were dropped is logged once the
+ *     job is below the limit again.</li>
+ * </ul>
+ * A reducer is created for every job and is not thread safe.
+ */
+public class LogReducer {
+
+    private final int linesPerSecond;
+    private final LongSupplier nanoClock;
+    private byte[] previousLine = new byte[256];
+    private int previousLength;
+    private boolean hasPreviousLine;
+    private long repeats;
+    private double tokens;
+    private long lastRefill;
+    private long droppedSinceLastRecord;
+    private final Stats stats = new Stats();
+
+    /**
+     * How much the reducer removed from a job's output.
+     */
+    public static class Stats {
+        private long collapsedProgressUpdates;
+        private long foldedRepeats;
+        private long rateLimitedLines;
+
+        public long getCollapsedProgressUpdates() {
+            return collapsedProgressUpdates;
+        }
+
+        public long getFoldedRepeats() {
+            return foldedRepeats;
+        }
+
+        public long getRateLimitedLines() {
+            return rateLimitedLines;
+        }
+
+        @Override
+        public String toString() {
+            return "collapsed progress updates = " + collapsedProgressUpdates +
+                   ", folded repeated lines = " + foldedRepeats +
+                   ", rate limited lines = " + rateLimitedLines;
+        }
+    }
+
+    /**
+     * @param linesPerSecond the maximum number of lines to log per second, 0 for no limit
+     */
+    public LogReducer(int linesPerSecond) {
+        this(linesPerSecond, System::nanoTime);
+    }
+
+    LogReducer(int linesPerSecond, LongSupplier nanoClock) {
+        this.linesPerSecond = linesPerSecond;
+        this.nanoClock = nanoClock;
+        this.tokens = linesPerSecond;
+        this.lastRefill = nanoClock.getAsLong();
+    }
+
+    /**
+     * @param line   a line of output as UTF-8 bytes, split on line feeds only, so it may contain carriage returns
+     * @param output receives the lines to log
+     */
+    public void accept(byte[] line, int offset, int length, LineConsumer output) {
+        int end = offset + length;
+        while (end > offset && line[end - 1] == '\r') {
+            end--;
+        }
+        int start = offset;
+        for (int i = offset; i < end; i++) {
+            if (line[i] == '\r') {
+                stats.collapsedProgressUpdates++;
+                start = i + 1;
+            }
+        }
+        if (hasPreviousLine && Arrays.equals(line, start, end, previousLine, 0, previousLength)) {
+            repeats++;
+            stats.foldedRepeats++;
+            return;
+        }
+        flushRepeats(output);
+        rememberLine(line, start, end - start);
+        emit(line, start, end - start, output);
+    }
+
+    /**
+     * Log any records still held back when the job's output has ended.
+     */
+    public void finish(LineConsumer output) {
+        flushRepeats(output);
+        if (droppedSinceLastRecord > 0) {
+            emitRecord(droppedRecord(), output);
+        }
+    }
+
+    public Stats getStats() {
+        return stats;
+    }
+
+    private void rememberLine(byte[] line, int offset, int length) {
+        if (previousLine.length < length) {
+            previousLine = new byte[Math.max(length, previousLine.length * 2)];
+        }
+        System.arraycopy(line, offset, previousLine, 0, length);
+        previousLength = length;
+        hasPreviousLine = true;
+    }
+
+    private void flushRepeats(LineConsumer output) {
+        if (repeats > 0) {
+            byte[] record = ("[previous line repeated " + repeats + " more times]").getBytes(StandardCharsets.UTF_8);
+            emit(record, 0, record.length, output);
+            repeats = 0;
+        }
+    }
+
+    private void emit(byte[] line, int offset, int length, LineConsumer output) {
+        if (linesPerSecond <= 0) {
+            output.accept(line, offset, length);
+            return;
+        }
+        refill();
+        if (tokens < 1) {
+            droppedSinceLastRecord++;
+            stats.rateLimitedLines++;
+            return;
+        }
+        if (droppedSinceLastRecord > 0) {
+            emitRecord(droppedRecord(), output);
+            droppedSinceLastRecord = 0;
+        }
+        tokens--;
+        output.accept(line, offset, length);
+    }
+
+    private static void emitRecord(String record, LineConsumer output) {
+        byte[] bytes = record.getBytes(StandardCharsets.UTF_8);
+        output.accept(bytes, 0, bytes.length);
+    }
+
+    private void refill() {
+        long now = nanoClock.getAsLong();
+        double elapsedSeconds = (double) (now - lastRefill) / TimeUnit.SECONDS.toNanos(1);
+        tokens = Math.min(linesPerSecond, tokens + elapsedSeconds * linesPerSecond);
+        lastRefill = now;
+    }
+
+    private String droppedRecord() {
+        return "[" + droppedSinceLastRecord + " lines dropped, output is limited to " + linesPerSecond + " lines per second]";
+    }
+}
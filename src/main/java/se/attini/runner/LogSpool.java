@@ -0,0 +1,84 @@
+package se.attini.runner;
+
+import java.util.concurrent.TimeUnit;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Keeps track of the disk space used by the local job logs, the log spool, across all jobs. The budget is set in
+ * megabytes with ATTINI_LOG_SPOOL_LIMIT_MB.
+ * <p>
+ * When the budget is used up the {@link S3Logger} first uploads the logs of running jobs, so that uploaded chunks can
+ * be deleted, and waits for a while for space to be freed, which makes scripts block on their output. If there is
+ * still no space, lines are not logged until there is, and a record with the number of lines that were lost is
+ * logged in their place.
+ */
+@ApplicationScoped
+public class LogSpool {
+
+    private static final Logger logger = Logger.getLogger(LogSpool.class);
+
+    private final long budget;
+    private long usage;
+    private boolean full;
+
+    @Inject
+    public LogSpool(EnvironmentVariables environmentVariables) {
+        this(environmentVariables.getLogSpoolLimit() * 1024L * 1024L);
+    }
+
+    LogSpool(long budget) {
+        this.budget = budget;
+    }
+
+    synchronized void add(long bytes) {
+        usage += bytes;
+        if (!full && usage >= budget) {
+            full = true;
+            logger.warn("The local log spool is full, using " + usage + " of " + budget + " bytes");
+        }
+    }
+
+    synchronized void release(long bytes) {
+        usage -= bytes;
+        if (full && usage < budget) {
+            full = false;
+            logger.info("The local log spool has space again, using " + usage + " of " + budget + " bytes");
+        }
+        notifyAll();
+    }
+
+    public synchronized boolean hasCapacity() {
+        return usage < budget;
+    }
+
+    /**
+     * Wait until there is space in the spool.
+     *
+     * @return true if there is space, false if the timeout passed first
+     */
+    public synchronized boolean awaitCapacity(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (usage >= budget) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of bytes used by local job logs
+     */
+    public synchronized long getUsage() {
+        return usage;
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+}
@@ -0,0 +1,267 @@
+package se.attini.runner;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+import org.jboss.logging.Logger;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Streams the output of running jobs over HTTP as server-sent events. Enabled by setting ATTINI_LOG_TAIL_PORT, and
+ * listens on localhost unless ATTINI_LOG_TAIL_HOST is set.
+ * <ul>
+ *     <li>{@code GET /jobs} returns the names of the running jobs as a JSON array.</li>
+ *     <li>{@code GET /jobs/<name>} streams the job's output, one event per line, until the job is done.</li>
+ * </ul>
+ * Publishing a line never blocks. Every subscriber has a bounded queue, and lines that do not fit are dropped and
+ * reported to the subscriber with a {@code dropped} event once it has caught up.
+ */
+@ApplicationScoped
+public class LogTail {
+
+    private static final Logger logger = Logger.getLogger(LogTail.class);
+
+    private static final int SUBSCRIBER_QUEUE_SIZE = 1000;
+
+    private static final int MAX_SUBSCRIBERS = 20;
+
+    private static final String JOBS_PATH = "/jobs";
+
+    private final EnvironmentVariables environmentVariables;
+    private final ObjectMapper objectMapper;
+    private final Map<String, List<Subscriber>> jobs;
+    private final AtomicInteger subscriberCount;
+    private volatile boolean enabled;
+    private HttpServer httpServer;
+
+    @Inject
+    public LogTail(EnvironmentVariables environmentVariables, ObjectMapper objectMapper) {
+        this.environmentVariables = requireNonNull(environmentVariables, "environmentVariables");
+        this.objectMapper = requireNonNull(objectMapper, "objectMapper");
+        this.jobs = new ConcurrentHashMap<>();
+        this.subscriberCount = new AtomicInteger();
+    }
+
+    /**
+     * Start the HTTP server if a port is configured.
+     */
+    public synchronized void start() {
+        Integer port = environmentVariables.getLogTailPort();
+        if (port == null || httpServer != null) {
+            return;
+        }
+        try {
+            String host = environmentVariables.getLogTailHost();
+            httpServer = HttpServer.create(new InetSocketAddress(host, port), 0);
+            httpServer.createContext(JOBS_PATH, this::handle);
+            AtomicInteger threadCounter = new AtomicInteger();
+            httpServer.setExecutor(Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "log-tail-thread-" + threadCounter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }));
+            httpServer.start();
+            enabled = true;
+            logger.info("Streaming job output on http://" + host + ":" + getPort() + JOBS_PATH);
+        } catch (IOException e) {
+            logger.error("Could not start the log tail server on port " + port + ". Message: " + e.getMessage());
+            httpServer = null;
+        }
+    }
+
+    public synchronized void stop() {
+        if (httpServer != null) {
+            enabled = false;
+            httpServer.stop(0);
+            httpServer = null;
+        }
+    }
+
+    /**
+     * @return the port the server listens on, -1 if it is not started
+     */
+    public synchronized int getPort() {
+        return httpServer != null ? httpServer.getAddress().getPort() : -1;
+    }
+
+    /**
+     * Make a job available for subscribers.
+     */
+    public void jobStarted(JobData jobData) {
+        if (enabled && jobData != null) {
+            jobs.putIfAbsent(jobName(jobData), new CopyOnWriteArrayList<>());
+        }
+    }
+
+    /**
+     * Publish a line given as UTF-8 bytes. The line is only decoded if someone is subscribed to the job.
+     */
+    public void publish(JobData jobData, byte[] line, int offset, int length) {
+        if (!enabled || jobData == null) {
+            return;
+        }
+        List<Subscriber> subscribers = jobs.get(jobName(jobData));
+        if (subscribers == null || subscribers.isEmpty()) {
+            return;
+        }
+        String decoded = new String(line, offset, length, StandardCharsets.UTF_8);
+        for (Subscriber subscriber : subscribers) {
+            subscriber.offer(decoded);
+        }
+    }
+
+    /**
+     * End the streams of the job's subscribers.
+     */
+    public void jobFinished(JobData jobData) {
+        if (!enabled || jobData == null) {
+            return;
+        }
+        List<Subscriber> subscribers = jobs.remove(jobName(jobData));
+        if (subscribers != null) {
+            subscribers.forEach(Subscriber::finish);
+        }
+    }
+
+    static String jobName(JobData jobData) {
+        return jobData.stepName() + "-" + jobData.executionArn()
+                                                 .substring(jobData.executionArn().lastIndexOf(":") + 1);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            String path = exchange.getRequestURI().getPath();
+            if (path.equals(JOBS_PATH) || path.equals(JOBS_PATH + "/")) {
+                sendJobs(exchange);
+                return;
+            }
+            String jobName = path.substring(JOBS_PATH.length() + 1);
+            List<Subscriber> subscribers = jobs.get(jobName);
+            if (subscribers == null) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            if (subscriberCount.incrementAndGet() > MAX_SUBSCRIBERS) {
+                subscriberCount.decrementAndGet();
+                exchange.sendResponseHeaders(503, -1);
+                return;
+            }
+            Subscriber subscriber = new Subscriber();
+            subscribers.add(subscriber);
+            try {
+                exchange.getResponseHeaders().add("Content-Type", "text/event-stream; charset=utf-8");
+                exchange.getResponseHeaders().add("Cache-Control", "no-cache");
+                exchange.sendResponseHeaders(200, 0);
+                if (!jobs.containsKey(jobName)) {
+                    subscriber.finish();
+                }
+                subscriber.stream(exchange.getResponseBody());
+            } finally {
+                subscribers.remove(subscriber);
+                subscriberCount.decrementAndGet();
+            }
+        }
+    }
+
+    private void sendJobs(HttpExchange exchange) throws IOException {
+        byte[] body;
+        try {
+            body = objectMapper.writeValueAsBytes(jobs.keySet());
+        } catch (JsonProcessingException e) {
+            throw new IOException(e);
+        }
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, body.length);
+        exchange.getResponseBody().write(body);
+    }
+
+    /**
+     * A client streaming a job's output. Lines are queued by the job's output thread and written to the client by
+     * the server thread handling the request.
+     */
+    private static class Subscriber {
+
+        private final BlockingQueue<String> queue = new ArrayBlockingQueue<>(SUBSCRIBER_QUEUE_SIZE);
+        private final AtomicLong dropped = new AtomicLong();
+        private volatile boolean finished;
+
+        void offer(String line) {
+            if (!queue.offer(line)) {
+                dropped.incrementAndGet();
+            }
+        }
+
+        void finish() {
+            finished = true;
+        }
+
+        void stream(OutputStream outputStream) throws IOException {
+            while (true) {
+                long droppedLines = dropped.getAndSet(0);
+                if (droppedLines > 0) {
+                    write(outputStream, "event: dropped\ndata: " + droppedLines + "\n\n");
+                }
+                String line = queue.poll();
+                if (line == null) {
+                    if (finished) {
+                        write(outputStream, "event: end\ndata: \n\n");
+                        outputStream.flush();
+                        return;
+                    }
+                    outputStream.flush();
+                    try {
+                        line = queue.poll(1, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    if (line == null) {
+                        // a comment, so that a client that has gone away is noticed
+                        write(outputStream, ":\n\n");
+                        continue;
+                    }
+                }
+                writeLine(outputStream, line);
+            }
+        }
+
+        private static void write(OutputStream outputStream, String event) throws IOException {
+            outputStream.write(event.getBytes(StandardCharsets.UTF_8));
+        }
+
+        private static void writeLine(OutputStream outputStream, String line) throws IOException {
+            StringBuilder event = new StringBuilder(line.length() + 16);
+            int start = 0;
+            int end;
+            while ((end = line.indexOf('\r', start)) >= 0) {
+                event.append("data: ").append(line, start, end).append('\n');
+                start = end + 1;
+            }
+            event.append("data: ").append(line, start, line.length()).append("\n\n");
+            write(outputStream, event.toString());
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package se.attini.runner;
+
+/**
+ * Uploads the local log file of a job to S3. An uploader is created for every job and is only called by one thread
+ * at a time.
+ */
+public interface LogUploader {
+
+    enum Mode {
+        /**
+         * Upload the whole log file to the log key on every sync.
+         */
+        WHOLE_FILE,
+        /**
+         * Upload what was written since the previous sync as a new chunk under the log key, together with a
+         * manifest listing the chunks in order. The final sync also uploads the whole log to the log key.
+         */
+        CHUNKED,
+        /**
+         * Like CHUNKED, but every chunk is compressed with gzip.
+         */
+        CHUNKED_GZIP
+    }
+
+    /**
+     * @param snapshot the part of the log to upload
+     * @param complete true if this is the final upload for the job
+     * @return the offset in the log before which everything has been uploaded and will not be read again, so that
+     * the sink can delete it
+     */
+    long upload(JobLogSink.Snapshot snapshot, boolean complete);
+}
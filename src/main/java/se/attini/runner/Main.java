@@ -53,6 +53,12 @@ public class Main {
         @Inject
         SfnFacade sfnFacade;
 
+        @Inject
+        WorkspaceReaper workspaceReaper;
+
+        @Inject
+        LogTail logTail;
+
         @Inject
         EnvironmentVariables environmentVariables;
 
@@ -80,6 +86,8 @@ public class Main {
 
             try {
                 addEc2ShutdownHook();
+                workspaceReaper.sweep();
+                logTail.start();
                 startupService.handleStartupTask();
             } catch (ScriptExecutionException e) {
                 shutdown.shutdown();
@@ -0,0 +1,138 @@
+package se.attini.runner;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Splits the output of a process into lines without decoding it. The output is read in large chunks into a buffer
+ * that is reused, and a line that is within a chunk is passed on as a slice of it. Only a line that spans two
+ * chunks is copied, into a line buffer that is also reused.
+ * <p>
+ * A line longer than the maximum line length is passed on in parts of at most that length, cut between UTF-8
+ * characters, so that one long line can not use more memory than that. A pump is created for every job and is not
+ * thread safe.
+ */
+public class OutputPump {
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private static final int INITIAL_LINE_BUFFER_SIZE = 8 * 1024;
+
+    private final int maxLineLength;
+    private final boolean splitOnCarriageReturn;
+    private final byte[] readBuffer;
+    private byte[] lineBuffer;
+    private int lineLength;
+    private boolean afterCarriageReturn;
+
+    /**
+     * @param maxLineLength         the maximum number of bytes in a line
+     * @param splitOnCarriageReturn true to also end lines on carriage returns, like {@link java.io.BufferedReader},
+     *                              false to only end lines on line feeds
+     */
+    public OutputPump(int maxLineLength, boolean splitOnCarriageReturn) {
+        if (maxLineLength < 4) {
+            throw new IllegalArgumentException("The max line length must be at least 4 bytes, was " + maxLineLength);
+        }
+        this.maxLineLength = maxLineLength;
+        this.splitOnCarriageReturn = splitOnCarriageReturn;
+        this.readBuffer = new byte[READ_BUFFER_SIZE];
+        this.lineBuffer = new byte[Math.min(INITIAL_LINE_BUFFER_SIZE, maxLineLength)];
+    }
+
+    /**
+     * Read the stream until it ends and pass every line to the consumer.
+     */
+    public void pump(InputStream inputStream, LineConsumer output) throws IOException {
+        int read;
+        while ((read = inputStream.read(readBuffer)) != -1) {
+            int start = 0;
+            for (int i = 0; i < read; i++) {
+                byte b = readBuffer[i];
+                if (b != '\n' && (b != '\r' || !splitOnCarriageReturn)) {
+                    continue;
+                }
+                if (b == '\n' && afterCarriageReturn && i == start && lineLength == 0) {
+                    // the line feed of a carriage return and line feed pair
+                    afterCarriageReturn = false;
+                    start = i + 1;
+                    continue;
+                }
+                endLine(start, i - start, output);
+                afterCarriageReturn = b == '\r';
+                start = i + 1;
+            }
+            append(readBuffer, start, read - start, output);
+        }
+        if (lineLength > 0) {
+            output.accept(lineBuffer, 0, lineLength);
+            lineLength = 0;
+        }
+    }
+
+    private void endLine(int start, int length, LineConsumer output) {
+        if (lineLength == 0) {
+            emit(readBuffer, start, length, output);
+            return;
+        }
+        append(readBuffer, start, length, output);
+        output.accept(lineBuffer, 0, lineLength);
+        lineLength = 0;
+    }
+
+    private void emit(byte[] buffer, int offset, int length, LineConsumer output) {
+        while (length > maxLineLength) {
+            int cut = characterBoundary(buffer, offset, maxLineLength);
+            output.accept(buffer, offset, cut);
+            offset += cut;
+            length -= cut;
+        }
+        output.accept(buffer, offset, length);
+    }
+
+    /**
+     * Add the start of a line to the line buffer. Full parts of the line are passed on as the buffer reaches the
+     * maximum line length.
+     */
+    private void append(byte[] buffer, int offset, int length, LineConsumer output) {
+        while (lineLength + length > maxLineLength) {
+            int fill = maxLineLength - lineLength;
+            ensureCapacity(maxLineLength);
+            System.arraycopy(buffer, offset, lineBuffer, lineLength, fill);
+            offset += fill;
+            length -= fill;
+            int cut = characterBoundary(lineBuffer, 0, maxLineLength);
+            output.accept(lineBuffer, 0, cut);
+            lineLength = maxLineLength - cut;
+            System.arraycopy(lineBuffer, cut, lineBuffer, 0, lineLength);
+        }
+        ensureCapacity(lineLength + length);
+        System.arraycopy(buffer, offset, lineBuffer, lineLength, length);
+        lineLength += length;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > lineBuffer.length) {
+            byte[] newBuffer = new byte[Math.min(maxLineLength, Math.max(capacity, lineBuffer.length * 2))];
+            System.arraycopy(lineBuffer, 0, newBuffer, 0, lineLength);
+            lineBuffer = newBuffer;
+        }
+    }
+
+    /**
+     * @return the length of the longest prefix of the range that does not end in the middle of a UTF-8 character.
+     * The whole range if it is not valid UTF-8.
+     */
+    static int characterBoundary(byte[] buffer, int offset, int length) {
+        int end = offset + length;
+        for (int i = end - 1; i >= Math.max(offset, end - 4); i--) {
+            int b = buffer[i] & 0xFF;
+            if ((b & 0xC0) == 0x80) {
+                continue;
+            }
+            int characterLength = b < 0x80 ? 1 : b >= 0xF0 ? 4 : b >= 0xE0 ? 3 : 2;
+            return i + characterLength > end && i > offset ? i - offset : length;
+        }
+        return length;
+    }
+}
@@ -3,14 +3,18 @@ package se.attini.runner;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Consumer;
 
 import org.apache.commons.io.FileUtils;
 
 public class PathRegistry {
 
+    private final Consumer<Path> deleter;
+
     private List<Path> paths = new ArrayList<>();
 
-    private PathRegistry() {
+    private PathRegistry(Consumer<Path> deleter) {
+        this.deleter = deleter;
     }
 
     public Path register(Path path){
@@ -19,14 +23,19 @@ public class PathRegistry {
     }
 
     public void deletePaths(){
-        paths.stream()
-             .map(Path::toFile)
-             .forEach(FileUtils::deleteQuietly);
+        paths.forEach(deleter);
         paths = new ArrayList<>();
     }
 
     public static PathRegistry create(){
-        return new PathRegistry();
+        return new PathRegistry(path -> FileUtils.deleteQuietly(path.toFile()));
+    }
+
+    /**
+     * Create a registry that hands its paths over to the given reaper instead of deleting them directly.
+     */
+    public static PathRegistry create(WorkspaceReaper workspaceReaper){
+        return new PathRegistry(workspaceReaper::reap);
     }
 
 
@@ -0,0 +1,238 @@
+package se.attini.runner;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import jakarta.enterprise.context.ApplicationScoped;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Accounts for the resources used by the process trees of jobs. The job's shell and all its descendants are
+ * sampled from /proc every second.
+ * <p>
+ * The CPU time and IO counters of a process in /proc include the children it has waited for. When a process exits,
+ * its last sample is counted unless its parent is still in the tree, since the parent's counters then include it.
+ * What the tree uses after the last sample before the shell exits is not counted, so the usage of jobs that run for
+ * less than a few seconds is mostly a lower bound.
+ */
+@ApplicationScoped
+public class ProcessTreeMonitor {
+
+    private static final Logger logger = Logger.getLogger(ProcessTreeMonitor.class);
+
+    private static final long SAMPLE_INTERVAL_MILLIS = 1000;
+
+    /**
+     * USER_HZ, the unit of the CPU times in /proc, which is 100 on all architectures the runner is built for.
+     */
+    private static final long CLOCK_TICKS_PER_SECOND = 100;
+
+    private static final Path PROC = Path.of("/proc");
+
+    private final long sampleIntervalMillis;
+    private final boolean supported;
+    private final ScheduledExecutorService scheduler;
+
+    public ProcessTreeMonitor() {
+        this(SAMPLE_INTERVAL_MILLIS);
+    }
+
+    ProcessTreeMonitor(long sampleIntervalMillis) {
+        this.sampleIntervalMillis = sampleIntervalMillis;
+        this.supported = Files.isDirectory(PROC.resolve("self"));
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "process-tree-monitor-thread");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Start sampling a process and its descendants. Without /proc nothing is sampled and the usage only has the
+     * wall time.
+     */
+    public Session start(ProcessHandle root) {
+        Session session = new Session(root, System.currentTimeMillis());
+        if (supported) {
+            session.future = scheduler.scheduleWithFixedDelay(session::sample,
+                                                              0,
+                                                              sampleIntervalMillis,
+                                                              TimeUnit.MILLISECONDS);
+        }
+        return session;
+    }
+
+    /**
+     * The sampling of one job's process tree.
+     */
+    public static final class Session {
+
+        private final ProcessHandle root;
+        private final long started;
+        private final Map<Long, ProcessSample> processes;
+        private ScheduledFuture<?> future;
+        private long exitedCpuTicks;
+        private long exitedReadBytes;
+        private long exitedWrittenBytes;
+        private long peakRssBytes;
+        private int processCount;
+        private ResourceUsage result;
+
+        private Session(ProcessHandle root, long started) {
+            this.root = root;
+            this.started = started;
+            this.processes = new HashMap<>();
+        }
+
+        /**
+         * Stop sampling, typically when the job's shell has exited.
+         *
+         * @return the usage of the tree
+         */
+        public synchronized ResourceUsage stop() {
+            if (result == null) {
+                if (future != null) {
+                    future.cancel(false);
+                    sample();
+                }
+                long cpuTicks = exitedCpuTicks;
+                long readBytes = exitedReadBytes;
+                long writtenBytes = exitedWrittenBytes;
+                for (ProcessSample process : processes.values()) {
+                    cpuTicks += process.cpuTicks();
+                    readBytes += process.readBytes();
+                    writtenBytes += process.writtenBytes();
+                }
+                result = new ResourceUsage(System.currentTimeMillis() - started,
+                                           cpuTicks * 1000 / CLOCK_TICKS_PER_SECOND,
+                                           peakRssBytes,
+                                           readBytes,
+                                           writtenBytes,
+                                           processCount);
+            }
+            return result;
+        }
+
+        private synchronized void sample() {
+            if (result != null) {
+                return;
+            }
+            try {
+                List<ProcessHandle> tree = new ArrayList<>();
+                tree.add(root);
+                root.descendants().forEach(tree::add);
+                Set<Long> live = new HashSet<>();
+                long rssBytes = 0;
+                for (ProcessHandle handle : tree) {
+                    ProcessSample sample = ProcessSample.read(handle.pid());
+                    if (sample == null) {
+                        continue;
+                    }
+                    ProcessSample previous = processes.put(sample.pid(), sample);
+                    if (previous == null || previous.startTime() != sample.startTime()) {
+                        processCount++;
+                    }
+                    if (previous != null && previous.startTime() != sample.startTime()) {
+                        // the pid has been reused since the previous sample
+                        addExited(previous);
+                    }
+                    live.add(sample.pid());
+                    rssBytes += sample.rssBytes();
+                }
+                peakRssBytes = Math.max(peakRssBytes, rssBytes);
+                Iterator<ProcessSample> iterator = processes.values().iterator();
+                while (iterator.hasNext()) {
+                    ProcessSample process = iterator.next();
+                    if (live.contains(process.pid())) {
+                        continue;
+                    }
+                    if (!live.contains(process.parentPid())) {
+                        addExited(process);
+                    }
+                    iterator.remove();
+                }
+            } catch (RuntimeException e) {
+                logger.debug("Could not sample the resource usage of process " + root.pid() + ", message: " + e.getMessage());
+            }
+        }
+
+        private void addExited(ProcessSample process) {
+            exitedCpuTicks += process.cpuTicks();
+            exitedReadBytes += process.readBytes();
+            exitedWrittenBytes += process.writtenBytes();
+        }
+    }
+
+    /**
+     * A sample of a process, with the CPU time and IO of the children it has waited for included.
+     */
+    private record ProcessSample(long pid,
+                                 long parentPid,
+                                 long startTime,
+                                 long cpuTicks,
+                                 long rssBytes,
+                                 long readBytes,
+                                 long writtenBytes) {
+
+        /**
+         * @return null if the process has exited
+         */
+        static ProcessSample read(long pid) {
+            Path directory = PROC.resolve(Long.toString(pid));
+            String stat;
+            try {
+                stat = Files.readString(directory.resolve("stat"));
+            } catch (IOException e) {
+                return null;
+            }
+            // the fields after the command name, which is in parentheses and may contain spaces
+            String[] fields = stat.substring(stat.lastIndexOf(')') + 2).trim().split(" ");
+            long cpuTicks = Long.parseLong(fields[11]) + Long.parseLong(fields[12]) +
+                            Long.parseLong(fields[13]) + Long.parseLong(fields[14]);
+            List<String> io = readLines(directory.resolve("io"));
+            return new ProcessSample(pid,
+                                     Long.parseLong(fields[1]),
+                                     Long.parseLong(fields[19]),
+                                     cpuTicks,
+                                     field(readLines(directory.resolve("status")), "VmRSS:") * 1024,
+                                     field(io, "read_bytes:"),
+                                     field(io, "write_bytes:"));
+        }
+
+        /**
+         * @return an empty list if the file can not be read, /proc/&lt;pid&gt;/io is only readable for processes of
+         * the same user
+         */
+        private static List<String> readLines(Path file) {
+            try {
+                return Files.readAllLines(file);
+            } catch (IOException e) {
+                return List.of();
+            }
+        }
+
+        /**
+         * @return the first number after the name, 0 if there is no such line, like VmRSS for a zombie
+         */
+        private static long field(List<String> lines, String name) {
+            for (String line : lines) {
+                if (line.startsWith(name)) {
+                    return Long.parseLong(line.substring(name.length()).trim().split("\\s+")[0]);
+                }
+            }
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package se.attini.runner;
+
+import io.quarkus.runtime.annotations.RegisterForReflection;
+
+/**
+ * The resources used by a job's process tree, sampled from /proc by the {@link ProcessTreeMonitor}. Sampled values
+ * are lower bounds, a process that starts and exits between two samples is only counted if the process that waits
+ * for it is sampled afterwards.
+ *
+ * @param wallTimeMillis  the time from the start of the job's shell until it exited
+ * @param cpuTimeMillis   the user and system CPU time of all processes in the tree
+ * @param peakRssBytes    the highest sampled sum of the resident memory of the processes in the tree
+ * @param readBytes       the bytes read from storage by the processes in the tree
+ * @param writtenBytes    the bytes written to storage by the processes in the tree
+ * @param processCount    the number of processes seen in the tree, including the job's shell
+ */
+@RegisterForReflection
+public record ResourceUsage(long wallTimeMillis,
+                            long cpuTimeMillis,
+                            long peakRssBytes,
+                            long readBytes,
+                            long writtenBytes,
+                            int processCount) {
+
+    @Override
+    public String toString() {
+        return "wall time = " + wallTimeMillis + " ms" +
+               ", cpu time = " + cpuTimeMillis + " ms" +
+               ", peak rss = " + peakRssBytes / (1024 * 1024) + " MB" +
+               ", read = " + readBytes + " bytes" +
+               ", written = " + writtenBytes + " bytes" +
+               ", processes = " + processCount;
+    }
+}
@@ -0,0 +1,92 @@
+package se.attini.runner;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+import org.jboss.logging.Logger;
+
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
+
+/**
+ * Checks that this container is still the task registered for the Runner in the resource states table.
+ * The registered taskId is read once and then refreshed in the background, so checking ownership does
+ * not require a call to DynamoDB. A mismatch is always confirmed with a consistent read before it is reported.
+ */
+@ApplicationScoped
+public class RunnerOwnership {
+
+    private static final Logger logger = Logger.getLogger(RunnerOwnership.class);
+
+    private final DynamoDbClient dynamoDbClient;
+    private final EnvironmentVariables environmentVariables;
+    private volatile String registeredTaskId;
+    private ScheduledExecutorService refreshExecutor;
+
+    @Inject
+    public RunnerOwnership(DynamoDbClient dynamoDbClient, EnvironmentVariables environmentVariables) {
+        this.dynamoDbClient = requireNonNull(dynamoDbClient, "dynamoDbClient");
+        this.environmentVariables = requireNonNull(environmentVariables, "environmentVariables");
+    }
+
+    /**
+     * @param taskId the taskId of this container
+     * @return true if the Runner resource is registered to the given task
+     */
+    public boolean isOwnedBy(String taskId) {
+        if (registeredTaskId == null) {
+            registeredTaskId = readTaskId(false);
+            startBackgroundRefresh();
+        }
+        if (registeredTaskId.equals(taskId)) {
+            return true;
+        }
+        logger.debug("Cached taskId differ from container taskId, will check again");
+        registeredTaskId = readTaskId(true);
+        return registeredTaskId.equals(taskId);
+    }
+
+    private synchronized void startBackgroundRefresh() {
+        if (refreshExecutor != null) {
+            return;
+        }
+        int interval = Math.max(1, environmentVariables.getOwnershipCheckInterval());
+        refreshExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "runner-ownership-thread");
+            thread.setDaemon(true);
+            return thread;
+        });
+        refreshExecutor.scheduleWithFixedDelay(this::refresh, interval, interval, TimeUnit.SECONDS);
+    }
+
+    private void refresh() {
+        try {
+            registeredTaskId = readTaskId(false);
+        } catch (Exception e) {
+            logger.warn("Could not refresh taskId for runner, will keep the last known value. Message: " + e.getMessage());
+        }
+    }
+
+    private String readTaskId(boolean consistentRead) {
+        return dynamoDbClient.getItem(GetItemRequest.builder()
+                                                    .consistentRead(consistentRead)
+                                                    .tableName(environmentVariables.getResourceStatesTable())
+                                                    .key(Map.of("resourceType",
+                                                                AttributeValue.builder()
+                                                                              .s("Runner")
+                                                                              .build(),
+                                                                "name",
+                                                                AttributeValue.builder()
+                                                                              .s(environmentVariables.getRunnerResourceName())
+                                                                              .build()))
+                                                    .build())
+                             .item().get("taskId").s();
+    }
+}
@@ -0,0 +1,255 @@
+package se.attini.runner;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+import org.jboss.logging.Logger;
+
+import se.attini.runner.BeanFactory.CustomAwsClient;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+/**
+ * Downloads S3 objects in parts, with several ranged requests at the same time, since a single stream from S3 is
+ * much slower than the network of the runner. The part size and the number of parts that are downloaded at the same
+ * time are set with ATTINI_S3_DOWNLOAD_PART_SIZE_MB and ATTINI_S3_DOWNLOAD_CONCURRENCY.
+ * <p>
+ * The first part is requested before the size of the object is known. Objects that fit in it are read from that
+ * one response, so small objects cost no more than a plain request. For larger objects the file is sized up front
+ * and every part is written at its offset. The parts after the first are requested with the ETag of the first, so
+ * that an object that is replaced during the download fails it instead of mixing two versions.
+ */
+@ApplicationScoped
+public class S3Downloader {
+
+    private static final Logger logger = Logger.getLogger(S3Downloader.class);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int RANGE_NOT_SATISFIABLE = 416;
+
+    private final S3Client s3Client;
+    private final long partSize;
+    private final int concurrency;
+    private final ExecutorService executor;
+
+    @Inject
+    public S3Downloader(@CustomAwsClient S3Client s3Client, EnvironmentVariables environmentVariables) {
+        this(s3Client,
+             environmentVariables.getS3DownloadPartSize() * 1024L * 1024L,
+             environmentVariables.getS3DownloadConcurrency());
+    }
+
+    S3Downloader(S3Client s3Client, long partSize, int concurrency) {
+        this.s3Client = requireNonNull(s3Client, "s3Client");
+        this.partSize = partSize;
+        this.concurrency = concurrency;
+        AtomicInteger threadCounter = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(Math.max(1, concurrency), runnable -> {
+            Thread thread = new Thread(runnable, "s3-download-thread-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Download an object to a file, which is replaced if it exists.
+     */
+    public void download(String bucket, String key, Path file) throws IOException {
+        long start = System.currentTimeMillis();
+        ResponseInputStream<GetObjectResponse> firstPart = getFirstPart(bucket, key);
+        long size;
+        try (FileChannel channel = FileChannel.open(file,
+                                                    StandardOpenOption.CREATE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING,
+                                                    StandardOpenOption.WRITE)) {
+            size = writeParts(bucket, key, firstPart, channel);
+        } catch (IOException | RuntimeException e) {
+            // do not read the rest of the part just to close the connection
+            firstPart.abort();
+            throw e;
+        } finally {
+            firstPart.close();
+        }
+        logger.debug("Downloaded " + size + " bytes from s3://" + bucket + "/" + key + " in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Open an object for reading. Objects that fit in one part are read from the response, larger objects are
+     * downloaded in parts to a temporary file that is deleted when the stream is closed.
+     */
+    public InputStream open(String bucket, String key) {
+        ResponseInputStream<GetObjectResponse> firstPart = getFirstPart(bucket, key);
+        if (objectSize(firstPart.response()) <= firstPart.response().contentLength()) {
+            return firstPart;
+        }
+        Path file = null;
+        try {
+            file = Files.createTempFile("attini-s3-download", "");
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                writeParts(bucket, key, firstPart, channel);
+            }
+            firstPart.close();
+            return Files.newInputStream(file, StandardOpenOption.DELETE_ON_CLOSE);
+        } catch (IOException | RuntimeException e) {
+            firstPart.abort();
+            closeQuietly(firstPart);
+            deleteQuietly(file);
+            if (e instanceof IOException ioException) {
+                throw new UncheckedIOException(ioException);
+            }
+            throw (RuntimeException) e;
+        }
+    }
+
+    /**
+     * Read an object as one stream, for readers that consume it while it arrives.
+     */
+    public ResponseInputStream<GetObjectResponse> stream(String bucket, String key) {
+        return s3Client.getObject(GetObjectRequest.builder().bucket(bucket).key(key).build());
+    }
+
+    /**
+     * Request the first part, or the whole object if parts are not used. Empty objects can not be requested with a
+     * range, so they are requested again without one.
+     */
+    private ResponseInputStream<GetObjectResponse> getFirstPart(String bucket, String key) {
+        GetObjectRequest request = GetObjectRequest.builder().bucket(bucket).key(key).build();
+        if (concurrency <= 1) {
+            return s3Client.getObject(request);
+        }
+        try {
+            return s3Client.getObject(request.toBuilder().range(range(0, partSize)).build());
+        } catch (S3Exception e) {
+            if (e.statusCode() == RANGE_NOT_SATISFIABLE) {
+                return s3Client.getObject(request);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Write the first part on the calling thread and download the rest in parallel.
+     *
+     * @return the size of the object
+     */
+    private long writeParts(String bucket,
+                            String key,
+                            ResponseInputStream<GetObjectResponse> firstPart,
+                            FileChannel channel) throws IOException {
+        GetObjectResponse response = firstPart.response();
+        long size = objectSize(response);
+        long firstPartSize = response.contentLength();
+        List<Future<?>> parts = new ArrayList<>();
+        if (size > firstPartSize) {
+            // size the file so that the parts can be written at their offsets in any order
+            channel.write(ByteBuffer.allocate(1), size - 1);
+            for (long offset = firstPartSize; offset < size; offset += partSize) {
+                long partStart = offset;
+                long partEnd = Math.min(size, offset + partSize);
+                parts.add(executor.submit(() -> {
+                    GetObjectRequest request = GetObjectRequest.builder()
+                                                               .bucket(bucket)
+                                                               .key(key)
+                                                               .range(range(partStart, partEnd))
+                                                               .ifMatch(response.eTag())
+                                                               .build();
+                    try (ResponseInputStream<GetObjectResponse> part = s3Client.getObject(request)) {
+                        write(part, channel, partStart, partEnd);
+                    }
+                    return null;
+                }));
+            }
+        }
+        try {
+            write(firstPart, channel, 0, firstPartSize);
+            for (Future<?> part : parts) {
+                part.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException ioException) {
+                throw ioException;
+            }
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while downloading s3://" + bucket + "/" + key, e);
+        } finally {
+            parts.forEach(part -> part.cancel(true));
+        }
+        return size;
+    }
+
+    private static void write(InputStream inputStream, FileChannel channel, long start, long end) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long position = start;
+        int read;
+        while ((read = inputStream.read(buffer)) > 0) {
+            if (position + read > end) {
+                throw new IOException("Received more bytes than requested, expected " + (end - start));
+            }
+            ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, read);
+            while (byteBuffer.hasRemaining()) {
+                position += channel.write(byteBuffer, position);
+            }
+        }
+        if (position != end) {
+            throw new IOException("Received " + (position - start) + " bytes but expected " + (end - start));
+        }
+    }
+
+    /**
+     * @return the size from the Content-Range header, or the content length if the whole object was returned
+     */
+    private static long objectSize(GetObjectResponse response) {
+        String contentRange = response.contentRange();
+        if (contentRange == null) {
+            return response.contentLength();
+        }
+        return Long.parseLong(contentRange.substring(contentRange.lastIndexOf('/') + 1));
+    }
+
+    private static String range(long start, long end) {
+        return "bytes=" + start + "-" + (end - 1);
+    }
+
+    private static void closeQuietly(InputStream inputStream) {
+        try {
+            inputStream.close();
+        } catch (IOException | RuntimeException e) {
+            logger.debug("Could not close the response, message: " + e.getMessage());
+        }
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            if (file != null) {
+                Files.deleteIfExists(file);
+            }
+        } catch (IOException e) {
+            logger.debug("Could not delete " + file + ", message: " + e.getMessage());
+        }
+    }
+}
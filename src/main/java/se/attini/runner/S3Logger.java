@@ -2,119 +2,241 @@ package se.attini.runner;
 
 import static java.util.Objects.requireNonNull;
 
-import java.io.File;
-import java.io.IOException;
-import java.io.UncheckedIOException;
-import java.nio.charset.StandardCharsets;
-import java.time.Instant;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
 
-import org.apache.commons.io.FileUtils;
 import org.jboss.logging.Logger;
-import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ObjectNode;
 
 import se.attini.runner.BeanFactory.CustomAwsClient;
-import software.amazon.awssdk.core.sync.RequestBody;
 import software.amazon.awssdk.services.s3.S3Client;
-import software.amazon.awssdk.services.s3.model.PutObjectRequest;
 import software.amazon.awssdk.services.s3.model.S3Exception;
 
 
+/**
+ * Writes the output of jobs to local log files and uploads them to S3. While a job is running its log is uploaded
+ * every 10 seconds by a background flusher, so that the thread reading the script output never waits for S3. If
+ * an upload is already waiting for a job, new requests are coalesced into it. The final upload when the job is
+ * done is made on the calling thread.
+ * <p>
+ * How the log is stored in S3 is decided by the {@link LogUploader.Mode} set with ATTINI_LOG_UPLOAD_MODE. The disk
+ * space used by the local logs is limited by the {@link LogSpool}.
+ */
 @ApplicationScoped
 public class S3Logger {
 
     private static final Logger logger = Logger.getLogger(S3Logger.class);
 
+    private static final long SYNC_INTERVAL_MILLIS = 10_000;
+
+    private static final int FLUSH_THREADS = 2;
+
+    private static final long SPOOL_BACKPRESSURE_MILLIS = 5_000;
+
+    private static final int FINISHED_SINKS_LIMIT = 1024;
+
     private final S3Client s3Client;
     private final ObjectMapper objectMapper;
+    private final LogUploader.Mode uploadMode;
+    private final LogSpool logSpool;
+    private final long syncIntervalMillis;
+    private final long spoolBackpressureMillis;
+
+    private final Map<SinkKey, JobLogSink> logSinks;
+
+    private final Set<FinishedSink> finishedSinks;
 
-    private final Map<String, File> logCash;
+    private final ExecutorService flushExecutorService;
 
-    private final Map<String, Instant> lastWrite;
+    /**
+     * Identifies the log of a job step. Used instead of the S3 key so that logging a line does not build a string.
+     */
+    private record SinkKey(String executionArn, String stepName) {
+    }
+
+    /**
+     * A log that has had its final sync. The response token is included so that a retry of the step, which gets a
+     * new token, can log again.
+     */
+    private record FinishedSink(SinkKey sinkKey, String responseToken) {
+    }
 
 
     @Inject
-    public S3Logger(@CustomAwsClient S3Client s3Client, ObjectMapper objectMapper) {
+    public S3Logger(@CustomAwsClient S3Client s3Client,
+                    ObjectMapper objectMapper,
+                    EnvironmentVariables environmentVariables,
+                    LogSpool logSpool) {
+        this(s3Client,
+             objectMapper,
+             environmentVariables.getLogUploadMode(),
+             logSpool,
+             SYNC_INTERVAL_MILLIS,
+             SPOOL_BACKPRESSURE_MILLIS);
+    }
+
+    S3Logger(S3Client s3Client,
+             ObjectMapper objectMapper,
+             LogUploader.Mode uploadMode,
+             LogSpool logSpool,
+             long syncIntervalMillis,
+             long spoolBackpressureMillis) {
         this.s3Client = requireNonNull(s3Client, "s3Client");
         this.objectMapper = requireNonNull(objectMapper, "objectMapper");
-        this.logCash = new ConcurrentHashMap<>();
-        this.lastWrite = new ConcurrentHashMap<>();
+        this.uploadMode = requireNonNull(uploadMode, "uploadMode");
+        this.logSpool = requireNonNull(logSpool, "logSpool");
+        this.syncIntervalMillis = syncIntervalMillis;
+        this.spoolBackpressureMillis = spoolBackpressureMillis;
+        this.logSinks = new ConcurrentHashMap<>();
+        this.finishedSinks = Collections.synchronizedSet(Collections.newSetFromMap(new LinkedHashMap<>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<FinishedSink, Boolean> eldest) {
+                return size() > FINISHED_SINKS_LIMIT;
+            }
+        }));
+        AtomicInteger threadCounter = new AtomicInteger();
+        this.flushExecutorService = Executors.newFixedThreadPool(FLUSH_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "s3-log-flush-thread-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return the number of bytes used by the local logs of all jobs
+     */
+    public long getSpoolUsage() {
+        return logSpool.getUsage();
+    }
+
+    /**
+     * Log a line given as UTF-8 bytes, which are written to the log without being decoded.
+     */
+    public void log(byte[] line, int offset, int length, JobData jobData) {
+        long timestamp = System.currentTimeMillis();
+        JobLogSink logSink = getLogSink(jobData);
+        if (logSink == null || !hasSpoolCapacity(logSink)) {
+            return;
+        }
+        logSink.write(timestamp, line, offset, length);
+        syncIfDue(logSink, jobData.stepName(), timestamp);
     }
 
-    public void log(String line, JobData jobData) {
-        Instant timestamp = Instant.now();
-        String key = createKey(jobData);
-        File file = logCash.computeIfAbsent(key, s -> {
+    /**
+     * @return the sink of the job, or null if the job's log has already had its final sync. Output that is read
+     * after that, for example from a process that outlived a timed out script, is dropped rather than written to a
+     * new sink that would never be removed and could overwrite the uploaded log.
+     */
+    private JobLogSink getLogSink(JobData jobData) {
+        SinkKey key = new SinkKey(jobData.executionArn(), jobData.stepName());
+        JobLogSink existing = logSinks.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        return logSinks.computeIfAbsent(key, sinkKey -> {
+            if (finishedSinks.contains(new FinishedSink(sinkKey, jobData.responseToken()))) {
+                return null;
+            }
             String fileName = jobData.stepName() +
                               "-" +
                               jobData.executionArn()
                                      .substring(jobData.executionArn()
                                                        .lastIndexOf(":") + 1);
-            return createTempFile(fileName);
+            return JobLogSink.create(fileName,
+                                     objectMapper.getFactory(),
+                                     createUploader(jobData, createKey(jobData)),
+                                     logSpool,
+                                     uploadMode != LogUploader.Mode.WHOLE_FILE);
         });
-
-
-        ObjectNode objectNode = objectMapper.createObjectNode();
-        objectNode.put("timestamp", timestamp.toEpochMilli());
-        objectNode.put("data", line);
-
-        appendToFile(objectNode, file);
-
-        Instant instant = lastWrite.computeIfAbsent(key, s -> Instant.now());
-
-        if (Instant.now().isAfter(instant.plusSeconds(10))) {
-
-            logger.info("Syncing step " + jobData.stepName() + " to S3");
-
-            putObject(jobData, key);
-            lastWrite.put(key, Instant.now());
-        }
-
-
     }
 
-    private static File createTempFile(String fileName) {
-        try {
-
-            File file = File.createTempFile(fileName,
-                                           ".log");
-
-            file.deleteOnExit();
-            return file;
-        } catch (IOException e) {
-            throw new UncheckedIOException(e);
+    private void syncIfDue(JobLogSink logSink, String stepName, long timestamp) {
+        if (logSink.shouldSync(timestamp, syncIntervalMillis) && logSink.scheduleUpload()) {
+            flushExecutorService.execute(() -> uploadInBackground(stepName, logSink));
         }
     }
 
-    private static void appendToFile(JsonNode line, File file) {
+    /**
+     * Check that there is space in the log spool for another line. If the spool is full, the logs of running jobs
+     * are uploaded so that uploaded chunks can be deleted, and the caller waits for space. If there still is no
+     * space, the sink is truncated until there is.
+     *
+     * @return true if the line should be written
+     */
+    private boolean hasSpoolCapacity(JobLogSink logSink) {
+        if (logSpool.hasCapacity()) {
+            logSink.resume(System.currentTimeMillis());
+            return true;
+        }
+        if (logSink.isTruncating()) {
+            logSink.truncate();
+            return false;
+        }
+        logSinks.forEach((key, sink) -> {
+            if (sink.isSegmented() && sink.scheduleUpload()) {
+                flushExecutorService.execute(() -> uploadInBackground(key.stepName(), sink));
+            }
+        });
         try {
-            FileUtils.write(file, line + "\n", StandardCharsets.UTF_8, true);
-        } catch (IOException e) {
-            throw new UncheckedIOException(e);
+            if (logSpool.awaitCapacity(spoolBackpressureMillis, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+        logger.warn("The local log spool is still full after waiting " + spoolBackpressureMillis + " ms, will not log output until there is space");
+        logSink.truncate();
+        return false;
     }
 
     public void syncToS3(JobData jobData) {
         if (jobData != null) {
-            String key = createKey(jobData);
-            if (logCash.get(key) != null && logCash.get(key).exists()) {
+            SinkKey key = new SinkKey(jobData.executionArn(), jobData.stepName());
+            finishedSinks.add(new FinishedSink(key, jobData.responseToken()));
+            JobLogSink logSink = logSinks.remove(key);
+            if (logSink != null) {
                 logger.info("Performing final sync for step " + jobData.stepName() + " to S3");
-                putObject(jobData, key);
-                //noinspection ResultOfMethodCallIgnored
-                logCash.get(key).delete();
-                logCash.remove(key);
+                logSink.close();
+                logSink.uploadLock().lock();
+                try {
+                    upload(logSink, true);
+                } finally {
+                    logSink.uploadLock().unlock();
+                    logSink.delete();
+                }
             }
         }
     }
-    private void putObject(JobData jobData, String key) {
+
+    private void uploadInBackground(String stepName, JobLogSink logSink) {
+        logSink.uploadLock().lock();
         try {
-            s3Client.putObject(PutObjectRequest.builder().bucket(jobData.sourceBucket()).key(key).build(),
-                               RequestBody.fromFile(logCash.get(key)));
+            logSink.uploadStarted();
+            if (logSink.isClosed()) {
+                return;
+            }
+            logger.info("Syncing step " + stepName + " to S3, log spool usage is " + logSpool.getUsage() + " of " + logSpool.getBudget() + " bytes");
+            upload(logSink, false);
+        } catch (Exception e) {
+            logger.warn("Failed to sync step " + stepName + " to S3, will retry on the next sync", e);
+        } finally {
+            logSink.uploadLock().unlock();
+        }
+    }
+
+    private void upload(JobLogSink logSink, boolean complete) {
+        try {
+            long uploaded = logSink.getUploader().upload(logSink.flush(), complete);
+            logSink.release(uploaded);
         } catch (S3Exception e) {
             throw new RuntimeException(
                     "Could not sync logs to S3. Please make sure that the Runner has s3:PutObject permission",
@@ -122,6 +244,14 @@ public class S3Logger {
         }
     }
 
+    private LogUploader createUploader(JobData jobData, String key) {
+        return switch (uploadMode) {
+            case WHOLE_FILE -> new WholeFileLogUploader(s3Client, jobData.sourceBucket(), key);
+            case CHUNKED -> new ChunkedLogUploader(s3Client, objectMapper, jobData.sourceBucket(), key, false);
+            case CHUNKED_GZIP -> new ChunkedLogUploader(s3Client, objectMapper, jobData.sourceBucket(), key, true);
+        };
+    }
+
     private String createKey(JobData jobData) {
         return "attini/deployment/logs/runner/"
                + jobData.environment() +
@@ -0,0 +1,8 @@
+package se.attini.runner;
+
+/**
+ * @param exitCode      the exit code of the script
+ * @param resourceUsage the resources used by the script's process tree, null if it was not monitored
+ */
+public record ScriptResult(int exitCode, ResourceUsage resourceUsage) {
+}
@@ -2,14 +2,14 @@ package se.attini.runner;
 
 import static java.util.Objects.requireNonNull;
 
-import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
@@ -22,26 +22,45 @@ public class ScriptRunner {
 
     private static final Logger logger = Logger.getLogger(ScriptRunner.class);
     private final S3Logger s3Logger;
+    private final LogTail logTail;
+    private final ConsoleWriter consoleWriter;
+    private final ProcessTreeMonitor processTreeMonitor;
 
     private final ExecutorService executorService;
     private final EnvironmentVariables environmentVariables;
 
     @Inject
     public ScriptRunner(S3Logger s3Logger,
+                        LogTail logTail,
+                        ConsoleWriter consoleWriter,
+                        ProcessTreeMonitor processTreeMonitor,
                         EnvironmentVariables environmentVariables) {
         this.s3Logger = requireNonNull(s3Logger, "s3Logger");
+        this.logTail = requireNonNull(logTail, "logTail");
+        this.consoleWriter = requireNonNull(consoleWriter, "consoleWriter");
+        this.processTreeMonitor = requireNonNull(processTreeMonitor, "processTreeMonitor");
         this.environmentVariables = requireNonNull(environmentVariables, "environmentVariables");
-        this.executorService = Executors.newFixedThreadPool(environmentVariables.getJobConcurrency());
+        this.executorService = JobExecutors.create(environmentVariables.getExecutorMode(),
+                                                   "job-output-thread",
+                                                   environmentVariables.getJobConcurrency());
     }
 
     public int runScript(Path path, int scriptTimeout) {
-        return runScript(path, scriptTimeout, null);
+        return runScript(path, scriptTimeout, null).exitCode();
     }
 
-
-    public int runScript(Path path, int scriptTimeout, JobData jobData) {
+    /**
+     * Run a script and log its output for the given job. The job log is not synced to S3 by this method,
+     * the caller should call {@link S3Logger#syncToS3(JobData)} once the script has exited.
+     * <p>
+     * The resources used by the script's process tree are monitored for jobs, and added to the job's log after
+     * the script's output when the script has exited.
+     */
+    public ScriptResult runScript(Path path, int scriptTimeout, JobData jobData) {
+        ProcessTreeMonitor.Session monitorSession = null;
 
         try {
+            logTail.jobStarted(jobData);
 
             logger.debug("execution timeout is set to = " + scriptTimeout);
 
@@ -55,6 +74,9 @@ public class ScriptRunner {
                                      "-c",
                                      fileCommand))
                     .start();
+            if (jobData != null) {
+                monitorSession = processTreeMonitor.start(process.toHandle());
+            }
 
             CompletableFuture<Void> loggingFeature = CompletableFuture
                     .runAsync(() -> logProcessOutput(jobData, process), executorService);
@@ -63,40 +85,80 @@ public class ScriptRunner {
             if (!waitFor) {
                 logger.error("Process is still running after " + scriptTimeout + " seconds, will destroy");
                 process.destroy();
-                s3Logger.syncToS3(jobData);
                 throw new ScriptExecutionException("Script timed out after " + scriptTimeout + " seconds");
             }
             int exitCode = process.waitFor();
+            ResourceUsage resourceUsage = null;
+            if (monitorSession != null) {
+                resourceUsage = monitorSession.stop();
+                logger.info("Resource usage for step " + jobData.stepName() + ": " + resourceUsage);
+            }
             loggingFeature.get();
-            s3Logger.syncToS3(jobData);
-            return exitCode;
+            if (resourceUsage != null) {
+                logResourceUsage(jobData, resourceUsage);
+            }
+            return new ScriptResult(exitCode, resourceUsage);
         } catch (ScriptExecutionException e) {
             throw e;
         } catch (Exception e) {
-            s3Logger.syncToS3(jobData);
             logger.error("Error while running script", e);
             throw new RuntimeException(e.getMessage(), e);
+        } finally {
+            if (monitorSession != null) {
+                monitorSession.stop();
+            }
+            logTail.jobFinished(jobData);
         }
 
     }
 
+    /**
+     * Add the resource usage to the job's log after the script's output, so that it is synced to S3 with it.
+     */
+    private void logResourceUsage(JobData jobData, ResourceUsage resourceUsage) {
+        byte[] line = ("[resource usage: " + resourceUsage + "]").getBytes(StandardCharsets.UTF_8);
+        s3Logger.log(line, 0, line.length, jobData);
+        logTail.publish(jobData, line, 0, line.length);
+    }
+
     private void logProcessOutput(JobData jobData, Process process) {
-        try( BufferedReader bufferedReader = process.inputReader()) {
-            bufferedReader.lines()
-                          .forEach(s -> {
-                              try {
-                                  System.out.println(s);
-                                  if (jobData != null) {
-                                      s3Logger.log(s, jobData);
-                                  }
-                              } catch (Exception e) {
-                                  String stepName = jobData != null ? jobData.stepName() : "";
-                                  logger.error("Error while logging script output for step " + stepName + ", message: " + e.getMessage());
-                                  throw new RuntimeException(e.getMessage(), e);
-                              }
-                          });
+        try (InputStream inputStream = process.getInputStream()) {
+            if (environmentVariables.isLogReductionEnabled()) {
+                logReducedProcessOutput(jobData, inputStream);
+                return;
+            }
+            new OutputPump(environmentVariables.getMaxLineLength(), true)
+                    .pump(inputStream, (buffer, offset, length) -> logLine(jobData, buffer, offset, length));
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
     }
+
+    /**
+     * Log the output through a {@link LogReducer}. The output is split on line feeds only, since the reducer needs
+     * to see the carriage returns.
+     */
+    private void logReducedProcessOutput(JobData jobData, InputStream inputStream) throws IOException {
+        LogReducer logReducer = new LogReducer(environmentVariables.getLogRateLimit());
+        LineConsumer output = (buffer, offset, length) -> logLine(jobData, buffer, offset, length);
+        new OutputPump(environmentVariables.getMaxLineLength(), false)
+                .pump(inputStream, (buffer, offset, length) -> logReducer.accept(buffer, offset, length, output));
+        logReducer.finish(output);
+        String stepName = jobData != null ? jobData.stepName() : "";
+        logger.info("Reduced output for step " + stepName + ": " + logReducer.getStats());
+    }
+
+    private void logLine(JobData jobData, byte[] buffer, int offset, int length) {
+        try {
+            consoleWriter.write(jobData, buffer, offset, length);
+            if (jobData != null) {
+                s3Logger.log(buffer, offset, length, jobData);
+                logTail.publish(jobData, buffer, offset, length);
+            }
+        } catch (Exception e) {
+            String stepName = jobData != null ? jobData.stepName() : "";
+            logger.error("Error while logging script output for step " + stepName + ", message: " + e.getMessage());
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
 }
@@ -11,6 +11,7 @@ import jakarta.inject.Inject;
 import org.jboss.logging.Logger;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 
 import software.amazon.awssdk.services.sfn.SfnClient;
 import software.amazon.awssdk.services.sfn.model.SendTaskFailureRequest;
@@ -22,6 +23,8 @@ public class SfnFacade {
 
     private static final Logger logger = Logger.getLogger(SfnFacade.class);
 
+    public static final String RESOURCE_USAGE_FIELD = "attiniResourceUsage";
+
     private final SfnClient sfnClient;
 
     private final ObjectMapper objectMapper;
@@ -33,12 +36,26 @@ public class SfnFacade {
 
     }
 
-    public void setTaskSuccess(JobData jobData, Path outputFile) {
+    /**
+     * @param resourceUsage added to the output as {@value RESOURCE_USAGE_FIELD} if not null, the output is a JSON
+     *                      object and the script did not already set that field
+     */
+    public void setTaskSuccess(JobData jobData, Path outputFile, ResourceUsage resourceUsage) {
         try {
+            JsonNode output = createOutput(outputFile);
+            if (resourceUsage != null) {
+                if (!(output instanceof ObjectNode objectNode)) {
+                    logger.info("The output is not a json object, the resource usage will not be included in it");
+                } else if (objectNode.has(RESOURCE_USAGE_FIELD)) {
+                    logger.warn("The output already has a " + RESOURCE_USAGE_FIELD + " field, the resource usage will not be included in it");
+                } else {
+                    objectNode.set(RESOURCE_USAGE_FIELD, objectMapper.valueToTree(resourceUsage));
+                }
+            }
             sfnClient
                     .sendTaskSuccess(SendTaskSuccessRequest.builder()
                                                            .taskToken(jobData.responseToken())
-                                                           .output(createOutput(outputFile).toString())
+                                                           .output(output.toString())
                                                            .build());
         } catch (TaskTimedOutException e) {
             logger.error("Failed to send success response to Step Function, message = " + e.getMessage());
@@ -0,0 +1,28 @@
+package se.attini.runner;
+
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+
+/**
+ * Uploads the whole log file to a single key on every sync. Since every sync reads the whole log, nothing can be
+ * deleted before the job is done.
+ */
+final class WholeFileLogUploader implements LogUploader {
+
+    private final S3Client s3Client;
+    private final String bucket;
+    private final String key;
+
+    WholeFileLogUploader(S3Client s3Client, String bucket, String key) {
+        this.s3Client = s3Client;
+        this.bucket = bucket;
+        this.key = key;
+    }
+
+    @Override
+    public long upload(JobLogSink.Snapshot snapshot, boolean complete) {
+        s3Client.putObject(PutObjectRequest.builder().bucket(bucket).key(key).build(),
+                           snapshot.range(0, snapshot.length()));
+        return 0;
+    }
+}
@@ -0,0 +1,177 @@
+package se.attini.runner;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+import org.apache.commons.io.FileUtils;
+import org.jboss.logging.Logger;
+
+/**
+ * Creates job workspaces from a template directory, so that a distribution's sources only have to be extracted once
+ * however many jobs use them. The strategy is set with ATTINI_WORKSPACE_STRATEGY.
+ * <ul>
+ *     <li>{@code AUTO}, the default, uses reflinks if the file system supports them and copies otherwise.</li>
+ *     <li>{@code REFLINK} clones the files with {@code cp --reflink=always}. The clones share blocks with the
+ *     template until they are written to, which makes them almost free on btrfs and xfs.</li>
+ *     <li>{@code COPY} copies the files.</li>
+ *     <li>{@code HARDLINK} links the files into the workspace. Only the directories are created, so it is the
+ *     fastest. The linked files are shared with the template, so their write permissions are removed, and a job that
+ *     writes to a file in place, rather than replacing it, fails instead of changing the template for later jobs.
+ *     The permissions do not stop a job running as root, so only use it for jobs that treat their sources as read
+ *     only.</li>
+ * </ul>
+ */
+@ApplicationScoped
+public class WorkspaceCloner {
+
+    private static final Logger logger = Logger.getLogger(WorkspaceCloner.class);
+
+    private static final long CP_TIMEOUT_SECONDS = 600;
+
+    private static final Set<PosixFilePermission> WRITE_PERMISSIONS = EnumSet.of(PosixFilePermission.OWNER_WRITE,
+                                                                                 PosixFilePermission.GROUP_WRITE,
+                                                                                 PosixFilePermission.OTHERS_WRITE);
+
+    public enum Strategy {
+        AUTO,
+        REFLINK,
+        COPY,
+        HARDLINK
+    }
+
+    private final Strategy strategy;
+    private Boolean reflinkSupported;
+
+    @Inject
+    public WorkspaceCloner(EnvironmentVariables environmentVariables) {
+        this(environmentVariables.getWorkspaceStrategy());
+    }
+
+    WorkspaceCloner(Strategy strategy) {
+        this.strategy = strategy;
+    }
+
+    /**
+     * Fill an empty directory with the content of the template.
+     *
+     * @return the strategy that was used, which is COPY if reflinks were asked for but could not be made
+     */
+    public Strategy clone(Path template, Path target) {
+        try {
+            return switch (strategy) {
+                case HARDLINK -> {
+                    copyTree(template, target, true);
+                    yield Strategy.HARDLINK;
+                }
+                case COPY -> {
+                    copyTree(template, target, false);
+                    yield Strategy.COPY;
+                }
+                case REFLINK, AUTO -> {
+                    if (isReflinkSupported(template) && reflink(template, target)) {
+                        yield Strategy.REFLINK;
+                    }
+                    if (strategy == Strategy.REFLINK) {
+                        logger.warn("Could not create reflinks of " + template + ", will copy the files instead");
+                    }
+                    copyTree(template, target, false);
+                    yield Strategy.COPY;
+                }
+            };
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Check once if reflinks can be made on the file system of the template, by cloning a file next to it.
+     */
+    private synchronized boolean isReflinkSupported(Path template) throws IOException {
+        if (reflinkSupported == null) {
+            Path probe = Files.createTempFile(template.getParent(), "reflink-probe", "");
+            Path probeClone = probe.resolveSibling(probe.getFileName() + ".clone");
+            try {
+                Files.writeString(probe, "probe");
+                reflinkSupported = runCp(List.of("cp", "--reflink=always", probe.toString(), probeClone.toString()));
+            } finally {
+                Files.deleteIfExists(probe);
+                Files.deleteIfExists(probeClone);
+            }
+            logger.info(reflinkSupported ? "Workspaces will be created with reflinks" : "The file system does not support reflinks, workspaces will be copied");
+        }
+        return reflinkSupported;
+    }
+
+    private boolean reflink(Path template, Path target) throws IOException {
+        if (runCp(List.of("cp", "-R", "-p", "--reflink=always", template + "/.", target.toString()))) {
+            return true;
+        }
+        FileUtils.cleanDirectory(target.toFile());
+        return false;
+    }
+
+    private static boolean runCp(List<String> command) throws IOException {
+        Process process;
+        try {
+            process = new ProcessBuilder(command).redirectErrorStream(true)
+                                                 .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                                                 .start();
+        } catch (IOException e) {
+            // no cp on the path
+            return false;
+        }
+        try {
+            if (!process.waitFor(CP_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+                return false;
+            }
+            return process.exitValue() == 0;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            process.destroyForcibly();
+            throw new IOException("Interrupted while cloning workspace", e);
+        }
+    }
+
+    private static void copyTree(Path template, Path target, boolean link) throws IOException {
+        Files.walkFileTree(template, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Files.createDirectories(target.resolve(template.relativize(dir)));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Path targetFile = target.resolve(template.relativize(file));
+                if (link) {
+                    removeWritePermissions(file);
+                    Files.createLink(targetFile, file);
+                } else {
+                    Files.copy(file, targetFile, StandardCopyOption.COPY_ATTRIBUTES);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static void removeWritePermissions(Path file) throws IOException {
+        Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(file);
+        if (permissions.removeAll(WRITE_PERMISSIONS)) {
+            Files.setPosixFilePermissions(file, permissions);
+        }
+    }
+}
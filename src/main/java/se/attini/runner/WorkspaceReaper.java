@@ -0,0 +1,125 @@
+package se.attini.runner;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import jakarta.enterprise.context.ApplicationScoped;
+
+import org.apache.commons.io.FileUtils;
+import org.jboss.logging.Logger;
+
+/**
+ * Deletes job workspaces in the background. A workspace directory is renamed into a trash directory right away,
+ * which is cheap, and then deleted by a single low priority thread, one directory at a time.
+ * <p>
+ * If the trash has too many directories waiting to be deleted or the file system is running out of space,
+ * workspaces are deleted on the calling thread instead, so that the backlog can not fill up the disk.
+ */
+@ApplicationScoped
+public class WorkspaceReaper {
+
+    private static final Logger logger = Logger.getLogger(WorkspaceReaper.class);
+
+    private static final int MAX_PENDING_DELETES = 20;
+
+    private static final double MIN_USABLE_SPACE_RATIO = 0.1;
+
+    private final Path trashDirectory;
+    private final ExecutorService reaperExecutor;
+    private final AtomicInteger pendingDeletes;
+
+    public WorkspaceReaper() {
+        this(Path.of(System.getProperty("java.io.tmpdir"), "attini-trash"));
+    }
+
+    WorkspaceReaper(Path trashDirectory) {
+        this.trashDirectory = trashDirectory;
+        this.pendingDeletes = new AtomicInteger();
+        this.reaperExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "workspace-reaper-thread");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+    }
+
+    /**
+     * Delete a file or directory. Directories are moved to the trash and deleted in the background when possible.
+     */
+    public void reap(Path path) {
+        if (path == null || !Files.exists(path)) {
+            return;
+        }
+        if (!Files.isDirectory(path) || !canDeferDelete()) {
+            FileUtils.deleteQuietly(path.toFile());
+            return;
+        }
+        try {
+            Files.createDirectories(trashDirectory);
+            Path trashPath = trashDirectory.resolve(UUID.randomUUID().toString());
+            Files.move(path, trashPath, StandardCopyOption.ATOMIC_MOVE);
+            deleteInBackground(trashPath);
+        } catch (AtomicMoveNotSupportedException e) {
+            logger.debug("Could not move " + path + " to trash, will delete it directly");
+            FileUtils.deleteQuietly(path.toFile());
+        } catch (IOException e) {
+            logger.warn("Could not move " + path + " to trash, will delete it directly. Message: " + e.getMessage());
+            FileUtils.deleteQuietly(path.toFile());
+        }
+    }
+
+    /**
+     * Delete anything left in the trash, for example by a previous run that was stopped before it had emptied it.
+     */
+    public void sweep() {
+        if (!Files.isDirectory(trashDirectory)) {
+            return;
+        }
+        try (Stream<Path> leftovers = Files.list(trashDirectory)) {
+            leftovers.forEach(this::deleteInBackground);
+        } catch (IOException e) {
+            logger.warn("Could not list trash directory " + trashDirectory + ". Message: " + e.getMessage());
+        }
+    }
+
+    public int getPendingDeletes() {
+        return pendingDeletes.get();
+    }
+
+    private void deleteInBackground(Path trashPath) {
+        pendingDeletes.incrementAndGet();
+        reaperExecutor.execute(() -> {
+            try {
+                FileUtils.deleteQuietly(trashPath.toFile());
+            } finally {
+                pendingDeletes.decrementAndGet();
+            }
+        });
+    }
+
+    private boolean canDeferDelete() {
+        if (pendingDeletes.get() >= MAX_PENDING_DELETES) {
+            logger.debug("Too many workspaces waiting to be deleted, will delete directly");
+            return false;
+        }
+        try {
+            FileStore fileStore = Files.getFileStore(trashDirectory.getParent());
+            if (fileStore.getTotalSpace() > 0 && (double) fileStore.getUsableSpace() / fileStore.getTotalSpace() < MIN_USABLE_SPACE_RATIO) {
+                logger.debug("Low on disk space, will delete workspace directly");
+                return false;
+            }
+        } catch (IOException e) {
+            logger.debug("Could not read disk usage, will delete workspace directly. Message: " + e.getMessage());
+            return false;
+        }
+        return true;
+    }
+}
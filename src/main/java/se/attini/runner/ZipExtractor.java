@@ -0,0 +1,471 @@
+package se.attini.runner;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipInputStream;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.TeeInputStream;
+import org.jboss.logging.Logger;
+
+/**
+ * Extracts zips with one task per entry on a fork-join pool, so that a distribution with many files is inflated on
+ * all cores. The central directory is read once and the entries are read with positional reads, so the tasks do not
+ * share any state.
+ * <p>
+ * Entries must be stored or deflated and not encrypted. Entries whose names point outside the target directory are
+ * rejected, and so are zips that would extract to more than ATTINI_SOURCE_EXTRACT_LIMIT_MB or that have entries
+ * that do not inflate to the size and checksum in the central directory. Unix permissions are kept, with read and
+ * write for the owner added so that jobs can change their files and the runner can delete them.
+ * <p>
+ * A zip can also be extracted while it is downloaded, see {@link #extract(InputStream, Path, Path)}.
+ */
+@ApplicationScoped
+public class ZipExtractor {
+
+    private static final Logger logger = Logger.getLogger(ZipExtractor.class);
+
+    private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+    private static final int ZIP64_END_OF_CENTRAL_DIRECTORY = 0x06064b50;
+    private static final int ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR = 0x07064b50;
+    private static final int CENTRAL_DIRECTORY_HEADER = 0x02014b50;
+    private static final int LOCAL_FILE_HEADER = 0x04034b50;
+    private static final int ZIP64_EXTRA_FIELD = 0x0001;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+    private static final int MAX_COMMENT_SIZE = 0xFFFF;
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+    private static final int ENCRYPTED_FLAG = 1;
+    private static final int UNIX = 3;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final long maxExtractedBytes;
+    private final ForkJoinPool pool;
+
+    /**
+     * An entry of the central directory.
+     *
+     * @param mode the unix permissions, or -1 if the zip was not made on unix
+     */
+    record Entry(String name, int method, int flags, long crc, long compressedSize, long size, long localHeaderOffset, int mode) {
+    }
+
+    @Inject
+    public ZipExtractor(EnvironmentVariables environmentVariables) {
+        this(Runtime.getRuntime().availableProcessors(), environmentVariables.getSourceExtractLimit() * 1024L * 1024L);
+    }
+
+    ZipExtractor(int parallelism, long maxExtractedBytes) {
+        this.maxExtractedBytes = maxExtractedBytes;
+        this.pool = new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * Extract a zip into a directory, which is created if it does not exist.
+     */
+    public void extract(Path zip, Path target) throws IOException {
+        long start = System.currentTimeMillis();
+        Path root = Files.createDirectories(target).toAbsolutePath().normalize();
+        try (FileChannel channel = FileChannel.open(zip, StandardOpenOption.READ)) {
+            List<Entry> entries = readCentralDirectory(channel);
+            long extractedBytes = entries.stream().mapToLong(Entry::size).sum();
+            if (extractedBytes > maxExtractedBytes) {
+                throw new IOException(zip + " would extract to " + extractedBytes + " bytes, the limit is " + maxExtractedBytes + " bytes");
+            }
+
+            // an entry that is added again to a zip is extracted once, from its last copy
+            Map<Path, Entry> files = new LinkedHashMap<>();
+            for (Entry entry : entries) {
+                Path path = resolve(root, entry.name());
+                if (entry.name().endsWith("/")) {
+                    Files.createDirectories(path);
+                } else {
+                    Files.createDirectories(path.getParent());
+                    files.put(path, entry);
+                }
+            }
+            // the largest entries first, so that a large entry is not left to run alone at the end
+            List<Map.Entry<Path, Entry>> sorted = new ArrayList<>(files.entrySet());
+            sorted.sort(Comparator.comparingLong((Map.Entry<Path, Entry> file) -> file.getValue().size()).reversed());
+            List<Callable<Void>> tasks = new ArrayList<>(sorted.size());
+            for (Map.Entry<Path, Entry> file : sorted) {
+                tasks.add(() -> {
+                    extractEntry(channel, file.getValue(), file.getKey());
+                    return null;
+                });
+            }
+            runAll(tasks);
+            logger.debug("Extracted " + entries.size() + " entries from " + zip + " in " + (System.currentTimeMillis() - start) + " ms");
+        }
+    }
+
+    /**
+     * Extract a zip while it is read from a stream, so that inflating overlaps with the download, and write the
+     * stream to a zip file at the same time. The entries are inflated on the calling thread in the order of their
+     * local headers. When the stream has been read, the central directory of the zip file is used to set the
+     * permissions and to check that every entry was extracted, and that no other entries were.
+     * <p>
+     * Zips that can not be read from start to end, like zips with stored entries whose sizes are only in a data
+     * descriptor, are extracted from the zip file with {@link #extract(Path, Path)} when the stream has been read.
+     */
+    public void extract(InputStream inputStream, Path zip, Path target) throws IOException {
+        long start = System.currentTimeMillis();
+        Path root = Files.createDirectories(target).toAbsolutePath().normalize();
+        Set<Path> extracted = new HashSet<>();
+        boolean streamed;
+        try (OutputStream zipFile = Files.newOutputStream(zip);
+             TeeInputStream teeInputStream = new TeeInputStream(inputStream, zipFile)) {
+            try {
+                extractEntries(new ZipInputStream(teeInputStream), root, extracted);
+                streamed = true;
+            } catch (ZipException e) {
+                logger.info("Could not extract " + zip + " while it was downloaded, will extract it afterwards, message: " + e.getMessage());
+                streamed = false;
+            }
+            // the rest of the stream is the central directory, or the entries that could not be streamed
+            IOUtils.consume(teeInputStream);
+        }
+
+        if (streamed) {
+            Set<Path> listed = new HashSet<>();
+            try (FileChannel channel = FileChannel.open(zip, StandardOpenOption.READ)) {
+                for (Entry entry : readCentralDirectory(channel)) {
+                    Path path = resolve(root, entry.name());
+                    if (entry.name().endsWith("/")) {
+                        Files.createDirectories(path);
+                    } else if (!extracted.contains(path)) {
+                        logger.info("Zip entry " + entry.name() + " of " + zip + " was not in the stream, will extract it afterwards");
+                        streamed = false;
+                        break;
+                    } else {
+                        setPermissions(path, entry);
+                    }
+                    listed.add(path);
+                }
+            }
+            // a local entry that the central directory does not list, like a deleted or replaced entry, is not
+            // part of the zip and must not be left in the target
+            if (streamed && !listed.containsAll(extracted)) {
+                logger.info("The stream of " + zip + " had entries that are not in its central directory, will extract it afterwards");
+                streamed = false;
+            }
+        }
+        if (streamed) {
+            logger.debug("Extracted " + extracted.size() + " entries from " + zip + " while it was downloaded in " + (System.currentTimeMillis() - start) + " ms");
+        } else {
+            FileUtils.cleanDirectory(root.toFile());
+            extract(zip, root);
+        }
+    }
+
+    private void extractEntries(ZipInputStream zipInputStream, Path root, Set<Path> extracted) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long extractedBytes = 0;
+        ZipEntry entry;
+        while ((entry = zipInputStream.getNextEntry()) != null) {
+            Path path = resolve(root, entry.getName());
+            extracted.add(path);
+            if (entry.isDirectory()) {
+                Files.createDirectories(path);
+                continue;
+            }
+            Files.createDirectories(path.getParent());
+            try (OutputStream outputStream = Files.newOutputStream(path)) {
+                int read;
+                while ((read = zipInputStream.read(buffer)) > 0) {
+                    extractedBytes += read;
+                    if (extractedBytes > maxExtractedBytes) {
+                        throw new IOException("The zip would extract to more than " + maxExtractedBytes + " bytes");
+                    }
+                    outputStream.write(buffer, 0, read);
+                }
+            }
+        }
+    }
+
+    private void runAll(List<Callable<Void>> tasks) throws IOException {
+        List<Future<Void>> futures = pool.invokeAll(tasks);
+        IOException failure = null;
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof IOException ioException ? ioException : new IOException(e.getCause());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while extracting", e);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Resolve the name of an entry, and reject it if it is not inside the target directory.
+     */
+    static Path resolve(Path root, String name) throws IOException {
+        Path path = root.resolve(name).normalize();
+        if (name.startsWith("/") || !path.startsWith(root) || path.equals(root) && !name.endsWith("/")) {
+            throw new IOException("Zip entry " + name + " is outside of the target directory");
+        }
+        return path;
+    }
+
+    static List<Entry> readCentralDirectory(FileChannel channel) throws IOException {
+        long fileSize = channel.size();
+        int tailSize = (int) Math.min(fileSize, END_OF_CENTRAL_DIRECTORY_SIZE + MAX_COMMENT_SIZE);
+        ByteBuffer tail = read(channel, fileSize - tailSize, tailSize);
+        int end = -1;
+        for (int i = tailSize - END_OF_CENTRAL_DIRECTORY_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == END_OF_CENTRAL_DIRECTORY) {
+                end = i;
+                break;
+            }
+        }
+        if (end < 0) {
+            throw new IOException("Not a zip file, the end of central directory record is missing");
+        }
+        long entryCount = Short.toUnsignedLong(tail.getShort(end + 10));
+        long directorySize = Integer.toUnsignedLong(tail.getInt(end + 12));
+        long directoryOffset = Integer.toUnsignedLong(tail.getInt(end + 16));
+
+        long locator = fileSize - tailSize + end - 20;
+        if (locator >= 0 && read(channel, locator, 4).getInt(0) == ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR) {
+            ByteBuffer zip64End = read(channel, read(channel, locator + 8, 8).getLong(0), 56);
+            if (zip64End.getInt(0) != ZIP64_END_OF_CENTRAL_DIRECTORY) {
+                throw new IOException("Invalid zip64 end of central directory record");
+            }
+            entryCount = zip64End.getLong(32);
+            directorySize = zip64End.getLong(40);
+            directoryOffset = zip64End.getLong(48);
+        }
+        if (directorySize > Integer.MAX_VALUE || directoryOffset + directorySize > fileSize) {
+            throw new IOException("Invalid central directory, size = " + directorySize + ", offset = " + directoryOffset);
+        }
+
+        try {
+            return readEntries(read(channel, directoryOffset, (int) directorySize), entryCount);
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Invalid central directory, an entry is outside of it", e);
+        }
+    }
+
+    private static List<Entry> readEntries(ByteBuffer directory, long entryCount) throws IOException {
+        List<Entry> entries = new ArrayList<>((int) Math.min(entryCount, 100_000));
+        int position = 0;
+        for (long i = 0; i < entryCount; i++) {
+            if (position + 46 > directory.limit() || directory.getInt(position) != CENTRAL_DIRECTORY_HEADER) {
+                throw new IOException("Invalid central directory header at entry " + i);
+            }
+            int madeBy = Short.toUnsignedInt(directory.getShort(position + 4)) >> 8;
+            int flags = Short.toUnsignedInt(directory.getShort(position + 8));
+            int method = Short.toUnsignedInt(directory.getShort(position + 10));
+            long crc = Integer.toUnsignedLong(directory.getInt(position + 16));
+            long compressedSize = Integer.toUnsignedLong(directory.getInt(position + 20));
+            long size = Integer.toUnsignedLong(directory.getInt(position + 24));
+            int nameLength = Short.toUnsignedInt(directory.getShort(position + 28));
+            int extraLength = Short.toUnsignedInt(directory.getShort(position + 30));
+            int commentLength = Short.toUnsignedInt(directory.getShort(position + 32));
+            int externalAttributes = directory.getInt(position + 38);
+            long localHeaderOffset = Integer.toUnsignedLong(directory.getInt(position + 42));
+
+            byte[] name = new byte[nameLength];
+            directory.get(position + 46, name);
+            int extra = position + 46 + nameLength;
+            int extraEnd = extra + extraLength;
+            while (extra + 4 <= extraEnd) {
+                int id = Short.toUnsignedInt(directory.getShort(extra));
+                int length = Short.toUnsignedInt(directory.getShort(extra + 2));
+                if (id == ZIP64_EXTRA_FIELD) {
+                    int field = extra + 4;
+                    if (size == ZIP64_MAGIC) {
+                        size = directory.getLong(field);
+                        field += 8;
+                    }
+                    if (compressedSize == ZIP64_MAGIC) {
+                        compressedSize = directory.getLong(field);
+                        field += 8;
+                    }
+                    if (localHeaderOffset == ZIP64_MAGIC) {
+                        localHeaderOffset = directory.getLong(field);
+                    }
+                }
+                extra += 4 + length;
+            }
+            if (size < 0 || compressedSize < 0) {
+                throw new IOException("Invalid size of zip entry " + new String(name, StandardCharsets.UTF_8));
+            }
+
+            entries.add(new Entry(new String(name, StandardCharsets.UTF_8),
+                                  method,
+                                  flags,
+                                  crc,
+                                  compressedSize,
+                                  size,
+                                  localHeaderOffset,
+                                  madeBy == UNIX ? (externalAttributes >>> 16) & 0777 : -1));
+            position = extraEnd + commentLength;
+        }
+        return entries;
+    }
+
+    private static void extractEntry(FileChannel channel, Entry entry, Path path) throws IOException {
+        if ((entry.flags() & ENCRYPTED_FLAG) != 0) {
+            throw new IOException("Zip entry " + entry.name() + " is encrypted");
+        }
+        if (entry.method() != STORED && entry.method() != DEFLATED) {
+            throw new IOException("Zip entry " + entry.name() + " uses unsupported compression method " + entry.method());
+        }
+        ByteBuffer localHeader = read(channel, entry.localHeaderOffset(), 30);
+        if (localHeader.getInt(0) != LOCAL_FILE_HEADER) {
+            throw new IOException("Invalid local file header of zip entry " + entry.name());
+        }
+        long dataOffset = entry.localHeaderOffset() + 30 +
+                          Short.toUnsignedInt(localHeader.getShort(26)) +
+                          Short.toUnsignedInt(localHeader.getShort(28));
+        if (dataOffset + entry.compressedSize() > channel.size()) {
+            throw new IOException("Zip entry " + entry.name() + " is truncated");
+        }
+
+        try (FileChannel out = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            CRC32 crc = new CRC32();
+            long written = entry.method() == STORED ?
+                           copy(channel, dataOffset, entry, out, crc) :
+                           inflate(channel, dataOffset, entry, out, crc);
+            if (written != entry.size() || crc.getValue() != entry.crc()) {
+                throw new IOException("Zip entry " + entry.name() + " is corrupt, expected " + entry.size() + " bytes with crc " + entry.crc() + " but got " + written + " bytes with crc " + crc.getValue());
+            }
+        }
+        setPermissions(path, entry);
+    }
+
+    private static void setPermissions(Path path, Entry entry) throws IOException {
+        if (entry.mode() > 0) {
+            Files.setPosixFilePermissions(path, permissions(entry.mode() | 0600));
+        }
+    }
+
+    private static long copy(FileChannel channel, long offset, Entry entry, FileChannel out, CRC32 crc) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.max(1, Math.min(BUFFER_SIZE, entry.compressedSize())));
+        long remaining = entry.compressedSize();
+        while (remaining > 0) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), remaining));
+            int read = channel.read(buffer, offset);
+            if (read < 0) {
+                throw new IOException("Zip entry " + entry.name() + " is truncated");
+            }
+            offset += read;
+            remaining -= read;
+            crc.update(buffer.array(), 0, read);
+            writeFully(out, buffer.flip());
+        }
+        return entry.compressedSize();
+    }
+
+    private static long inflate(FileChannel channel, long offset, Entry entry, FileChannel out, CRC32 crc) throws IOException {
+        ByteBuffer input = ByteBuffer.allocate((int) Math.max(1, Math.min(BUFFER_SIZE, entry.compressedSize())));
+        byte[] output = new byte[(int) Math.max(1, Math.min(BUFFER_SIZE, entry.size()))];
+        Inflater inflater = new Inflater(true);
+        try {
+            long remaining = entry.compressedSize();
+            long written = 0;
+            boolean padded = false;
+            while (!inflater.finished()) {
+                if (inflater.needsInput()) {
+                    if (remaining == 0 && padded) {
+                        throw new IOException("Zip entry " + entry.name() + " is truncated");
+                    } else if (remaining == 0) {
+                        // a raw inflater may need a byte after the end of the data to finish
+                        inflater.setInput(new byte[1]);
+                        padded = true;
+                    } else {
+                        input.clear().limit((int) Math.min(input.capacity(), remaining));
+                        int read = channel.read(input, offset);
+                        if (read < 0) {
+                            throw new IOException("Zip entry " + entry.name() + " is truncated");
+                        }
+                        offset += read;
+                        remaining -= read;
+                        inflater.setInput(input.array(), 0, read);
+                    }
+                }
+                int inflated = inflater.inflate(output);
+                if (inflated == 0 && inflater.needsDictionary()) {
+                    throw new IOException("Zip entry " + entry.name() + " needs a preset dictionary");
+                }
+                written += inflated;
+                if (written > entry.size()) {
+                    throw new IOException("Zip entry " + entry.name() + " inflates to more than " + entry.size() + " bytes");
+                }
+                crc.update(output, 0, inflated);
+                writeFully(out, ByteBuffer.wrap(output, 0, inflated));
+            }
+            return written;
+        } catch (DataFormatException e) {
+            throw new IOException("Zip entry " + entry.name() + " is corrupt", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of zip file");
+            }
+        }
+        return buffer.clear();
+    }
+
+    private static Set<PosixFilePermission> permissions(int mode) {
+        Set<PosixFilePermission> permissions = EnumSet.noneOf(PosixFilePermission.class);
+        PosixFilePermission[] values = PosixFilePermission.values();
+        for (int i = 0; i < values.length; i++) {
+            // OWNER_READ is the highest bit of the mode, OTHERS_EXECUTE the lowest
+            if ((mode & (1 << (values.length - 1 - i))) != 0) {
+                permissions.add(values[i]);
+            }
+        }
+        return permissions;
+    }
+}
@@ -11,6 +11,7 @@ import jakarta.inject.Inject;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
 
 import io.quarkus.runtime.QuarkusApplication;
+import se.attini.runner.LogReader;
 import se.attini.runner.commandmode.registercdkstack.RegisterCdkStacksService;
 
 public class CommandModeApp implements QuarkusApplication {
@@ -24,6 +25,9 @@ public class CommandModeApp implements QuarkusApplication {
     @Inject
     ArtifactStoreFacade artifactStoreFacade;
 
+    @Inject
+    LogReader logReader;
+
     @ConfigProperty(name = "quarkus.application.version")
     String version;
 
@@ -80,6 +84,19 @@ public class CommandModeApp implements QuarkusApplication {
                 }
 
             }
+            case "read-logs" -> {
+                try {
+                    long from = args.length > 4 ? Long.parseLong(args[4]) : Long.MIN_VALUE;
+                    long to = args.length > 5 ? Long.parseLong(args[5]) : Long.MAX_VALUE;
+                    logReader.read(args[2], args[3], from, to, System.out::println);
+                    yield 0;
+                } catch (Exception e) {
+                    System.err.println("Encountered errored, printing logs to error stream");
+                    printLogs();
+                    e.printStackTrace();
+                    yield 1;
+                }
+            }
            default -> {
                System.err.println("Unknown arguments: " + Arrays.toString(args));
                yield 1;
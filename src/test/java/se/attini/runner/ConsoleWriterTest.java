@@ -0,0 +1,122 @@
+package se.attini.runner;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static se.attini.runner.TestJobData.createJobData;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import io.quarkus.test.junit.QuarkusTest;
+
+@QuarkusTest
+class ConsoleWriterTest {
+
+    @Test
+    void write_shouldPrefixJobOutputWithStepName() {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        ConsoleWriter consoleWriter = new ConsoleWriter(outputStream, 100);
+        consoleWriter.start();
+        JobData jobData = createJobData();
+
+        write(consoleWriter, jobData, "first");
+        write(consoleWriter, null, "startup");
+        write(consoleWriter, jobData, "second");
+        consoleWriter.close();
+
+        assertEquals("[" + jobData.stepName() + "] first\n" +
+                     "startup\n" +
+                     "[" + jobData.stepName() + "] second\n",
+                     outputStream.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void write_shouldDropLinesAndReportThemWhenConsoleIsSlow() throws InterruptedException {
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        ConsoleWriter consoleWriter = new ConsoleWriter(slowOutputStream(outputStream, writing, release), 10);
+        consoleWriter.start();
+        JobData jobData = createJobData();
+
+        write(consoleWriter, jobData, "blocked");
+        assertTrue(writing.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 100; i++) {
+            write(consoleWriter, jobData, "line " + i);
+        }
+        long dropped = consoleWriter.getDroppedLines();
+        release.countDown();
+        consoleWriter.close();
+
+        String prefix = "[" + jobData.stepName() + "] ";
+        String output = outputStream.toString(StandardCharsets.UTF_8);
+        assertTrue(dropped > 0);
+        assertTrue(output.startsWith(prefix + "blocked\n" + prefix + "line 0\n"));
+        assertTrue(output.contains("[" + dropped + " lines were not written to the console"));
+    }
+
+    @Test
+    void write_shouldWaitForRoomForOutputThatDoesNotBelongToAJob() throws Exception {
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        ConsoleWriter consoleWriter = new ConsoleWriter(slowOutputStream(outputStream, writing, release), 10);
+        consoleWriter.start();
+
+        write(consoleWriter, null, "blocked");
+        assertTrue(writing.await(5, TimeUnit.SECONDS));
+        CompletableFuture<Void> startupOutput = CompletableFuture.runAsync(() -> {
+            for (int i = 0; i < 100; i++) {
+                write(consoleWriter, null, "line " + i);
+            }
+        });
+        Thread.sleep(100);
+        assertFalse(startupOutput.isDone());
+        release.countDown();
+        startupOutput.get(5, TimeUnit.SECONDS);
+        consoleWriter.close();
+
+        StringBuilder expected = new StringBuilder("blocked\n");
+        for (int i = 0; i < 100; i++) {
+            expected.append("line ").append(i).append('\n');
+        }
+        assertEquals(0, consoleWriter.getDroppedLines());
+        assertEquals(expected.toString(), outputStream.toString(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * An output stream that blocks the first write until released.
+     */
+    private static OutputStream slowOutputStream(ByteArrayOutputStream outputStream, CountDownLatch writing, CountDownLatch release) {
+        return new OutputStream() {
+            @Override
+            public void write(int b) {
+                outputStream.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                writing.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                outputStream.write(b, off, len);
+            }
+        };
+    }
+
+    private static void write(ConsoleWriter consoleWriter, JobData jobData, String line) {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        consoleWriter.write(jobData, bytes, 0, bytes.length);
+    }
+}
@@ -0,0 +1,92 @@
+package se.attini.runner;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import com.sun.net.httpserver.HttpServer;
+
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.mockito.InjectMock;
+
+@QuarkusTest
+class ContainerMetadataFacadeTest {
+
+    @InjectMock
+    EnvironmentVariables environmentVariables;
+
+    HttpServer metadataServer;
+
+    AtomicInteger requestCounter;
+
+    volatile String desiredStatus;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        requestCounter = new AtomicInteger();
+        desiredStatus = "RUNNING";
+        metadataServer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        metadataServer.createContext("/", exchange -> {
+            requestCounter.incrementAndGet();
+            byte[] body = """
+                    {
+                      "DesiredStatus": "%s",
+                      "Labels": {
+                        "com.amazonaws.ecs.task-arn": "test-task-arn"
+                      },
+                      "LogOptions": {
+                        "awslogs-group": "/attini/runner",
+                        "awslogs-region": "eu-west-1",
+                        "awslogs-stream": "runner/test"
+                      }
+                    }
+                    """.formatted(desiredStatus).getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream outputStream = exchange.getResponseBody()) {
+                outputStream.write(body);
+            }
+        });
+        metadataServer.start();
+        when(environmentVariables.getMetaDataEndpoint()).thenReturn("http://localhost:" + metadataServer.getAddress()
+                                                                                                        .getPort());
+    }
+
+    @AfterEach
+    void tearDown() {
+        metadataServer.stop(0);
+    }
+
+    @Test
+    void getMetadata_shouldReuseCachedMetadata() {
+        ContainerMetadataFacade containerMetadataFacade = new ContainerMetadataFacade(environmentVariables);
+
+        ContainerMetadata metadata = containerMetadataFacade.getMetadata();
+        containerMetadataFacade.getMetadata();
+
+        assertEquals(1, requestCounter.get());
+        assertEquals("test-task-arn", metadata.taskId());
+        assertFalse(metadata.isTerminating());
+        assertTrue(metadata.getLogUrl().isPresent());
+    }
+
+    @Test
+    void refreshMetadata_shouldReadMetadataAgain() {
+        ContainerMetadataFacade containerMetadataFacade = new ContainerMetadataFacade(environmentVariables);
+        containerMetadataFacade.getMetadata();
+        desiredStatus = "STOPPED";
+
+        assertTrue(containerMetadataFacade.refreshMetadata().isTerminating());
+        assertTrue(containerMetadataFacade.getMetadata().isTerminating());
+        assertEquals(2, requestCounter.get());
+    }
+}
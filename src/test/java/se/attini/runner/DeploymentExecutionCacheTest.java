@@ -0,0 +1,96 @@
+package se.attini.runner;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.mockito.InjectMock;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.GetItemResponse;
+
+@QuarkusTest
+class DeploymentExecutionCacheTest {
+
+    @InjectMock
+    DynamoDbClient dynamoDbClient;
+
+    @InjectMock
+    EnvironmentVariables environmentVariables;
+
+    @BeforeEach
+    void setUp() {
+        when(dynamoDbClient.getItem(any(GetItemRequest.class)))
+                .thenReturn(GetItemResponse.builder()
+                                           .item(Map.of("executionArns",
+                                                        AttributeValue.builder()
+                                                                      .m(Map.of("DeployApp",
+                                                                                AttributeValue.builder()
+                                                                                              .s("current-arn")
+                                                                                              .build()))
+                                                                      .build()))
+                                           .build());
+    }
+
+    @Test
+    void isCurrentExecution_shouldReuseKnownExecution() {
+        DeploymentExecutionCache cache = new DeploymentExecutionCache(dynamoDbClient, environmentVariables);
+
+        assertTrue(cache.isCurrentExecution(jobData("current-arn")));
+        assertTrue(cache.isCurrentExecution(jobData("current-arn")));
+
+        verify(dynamoDbClient, times(1)).getItem(any(GetItemRequest.class));
+    }
+
+    @Test
+    void isCurrentExecution_shouldAlwaysReadUnknownExecution() {
+        DeploymentExecutionCache cache = new DeploymentExecutionCache(dynamoDbClient, environmentVariables);
+
+        assertTrue(cache.isCurrentExecution(jobData("current-arn")));
+        assertFalse(cache.isCurrentExecution(jobData("new-arn")));
+        assertFalse(cache.isCurrentExecution(jobData("new-arn")));
+
+        verify(dynamoDbClient, times(3)).getItem(any(GetItemRequest.class));
+    }
+
+    @Test
+    void isCurrentExecution_shouldReadAgainWhenExpired() {
+        DeploymentExecutionCache cache = new DeploymentExecutionCache(dynamoDbClient,
+                                                                      environmentVariables,
+                                                                      Duration.ZERO);
+
+        assertTrue(cache.isCurrentExecution(jobData("current-arn")));
+        assertTrue(cache.isCurrentExecution(jobData("current-arn")));
+
+        verify(dynamoDbClient, times(2)).getItem(any(GetItemRequest.class));
+    }
+
+    private static JobData jobData(String executionArn) {
+        return new JobData(List.of(),
+                           "",
+                           "",
+                           "",
+                           executionArn,
+                           "dev",
+                           "test-demo",
+                           0,
+                           "DeployApp",
+                           "",
+                           "",
+                           "",
+                           "",
+                           Map.of());
+    }
+}
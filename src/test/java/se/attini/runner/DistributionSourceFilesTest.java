@@ -0,0 +1,265 @@
+package se.attini.runner;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.quarkus.test.junit.QuarkusTest;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.core.sync.ResponseTransformer;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+
+@QuarkusTest
+class DistributionSourceFilesTest {
+
+    private static final String BUCKET = "source-bucket";
+
+    Path tempDirectory;
+    CountingS3Client s3Client;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        tempDirectory = Files.createTempDirectory("distribution-source-files-test");
+        s3Client = new CountingS3Client();
+        putZip("dist-a", "a.txt", "content of a");
+        putZip("dist-b", "b.txt", "content of b");
+    }
+
+    @AfterEach
+    void tearDown() {
+        FileUtils.deleteQuietly(tempDirectory.toFile());
+    }
+
+    @Test
+    void sync_shouldDownloadEachDistributionOnce() throws IOException {
+        DistributionSourceFiles distributionSourceFiles = new DistributionSourceFiles(new S3Downloader(s3Client, 1024 * 1024, 4),
+                                                                                      new ZipExtractor(2, Long.MAX_VALUE),
+                                                                                      new WorkspaceCloner(WorkspaceCloner.Strategy.COPY),
+                                                                                      new WorkspaceReaper(tempDirectory.resolve("trash")),
+                                                                                      tempDirectory.resolve("cache"),
+                                                                                      Long.MAX_VALUE,
+                                                                                      false);
+
+        Path first = distributionSourceFiles.sync(jobData("dist-a", "1"));
+        Path second = distributionSourceFiles.sync(jobData("dist-b", "1"));
+        Path third = distributionSourceFiles.sync(jobData("dist-a", "1"));
+
+        assertEquals(2, s3Client.downloads.get());
+        assertNotEquals(first, third);
+        assertEquals("content of a", Files.readString(first.resolve("a.txt")));
+        assertEquals("content of b", Files.readString(second.resolve("b.txt")));
+        assertEquals("content of a", Files.readString(third.resolve("a.txt")));
+        List.of(first, second, third).forEach(path -> FileUtils.deleteQuietly(path.toFile()));
+    }
+
+    @Test
+    void sync_shouldExtractWhileDownloading() throws IOException {
+        DistributionSourceFiles distributionSourceFiles = new DistributionSourceFiles(new S3Downloader(s3Client, 1024 * 1024, 4),
+                                                                                      new ZipExtractor(2, Long.MAX_VALUE),
+                                                                                      new WorkspaceCloner(WorkspaceCloner.Strategy.COPY),
+                                                                                      new WorkspaceReaper(tempDirectory.resolve("trash")),
+                                                                                      tempDirectory.resolve("cache"),
+                                                                                      Long.MAX_VALUE,
+                                                                                      true);
+
+        Path first = distributionSourceFiles.sync(jobData("dist-a", "1"));
+        Path second = distributionSourceFiles.sync(jobData("dist-a", "1"));
+
+        assertEquals(1, s3Client.downloads.get());
+        assertEquals("content of a", Files.readString(first.resolve("a.txt")));
+        assertEquals("content of a", Files.readString(second.resolve("a.txt")));
+        try (Stream<Path> files = Files.list(tempDirectory.resolve("cache"))) {
+            assertEquals(1, files.count());
+        }
+        List.of(first, second).forEach(path -> FileUtils.deleteQuietly(path.toFile()));
+    }
+
+    @Test
+    void sync_shouldNotShareChangesBetweenJobs() throws IOException {
+        DistributionSourceFiles distributionSourceFiles = new DistributionSourceFiles(new S3Downloader(s3Client, 1024 * 1024, 4),
+                                                                                      new ZipExtractor(2, Long.MAX_VALUE),
+                                                                                      new WorkspaceCloner(WorkspaceCloner.Strategy.AUTO),
+                                                                                      new WorkspaceReaper(tempDirectory.resolve("trash")),
+                                                                                      tempDirectory.resolve("cache"),
+                                                                                      Long.MAX_VALUE,
+                                                                                      false);
+
+        Path first = distributionSourceFiles.sync(jobData("dist-a", "1"));
+        Files.writeString(first.resolve("a.txt"), "changed by the first job");
+        Path second = distributionSourceFiles.sync(jobData("dist-a", "1"));
+
+        assertEquals(1, s3Client.downloads.get());
+        assertEquals("content of a", Files.readString(second.resolve("a.txt")));
+        List.of(first, second).forEach(path -> FileUtils.deleteQuietly(path.toFile()));
+    }
+
+    @Test
+    void sync_shouldEvictLeastRecentlyUsedTemplate() throws IOException {
+        long templateSize = "content of a".length();
+        DistributionSourceFiles distributionSourceFiles = new DistributionSourceFiles(new S3Downloader(s3Client, 1024 * 1024, 4),
+                                                                                      new ZipExtractor(2, Long.MAX_VALUE),
+                                                                                      new WorkspaceCloner(WorkspaceCloner.Strategy.COPY),
+                                                                                      new WorkspaceReaper(tempDirectory.resolve("trash")),
+                                                                                      tempDirectory.resolve("cache"),
+                                                                                      templateSize + 10,
+                                                                                      false);
+
+        FileUtils.deleteQuietly(distributionSourceFiles.sync(jobData("dist-a", "1")).toFile());
+        FileUtils.deleteQuietly(distributionSourceFiles.sync(jobData("dist-b", "1")).toFile());
+        FileUtils.deleteQuietly(distributionSourceFiles.sync(jobData("dist-a", "1")).toFile());
+
+        assertEquals(3, s3Client.downloads.get());
+        try (Stream<Path> files = Files.list(tempDirectory.resolve("cache"))) {
+            assertEquals(1, files.count());
+        }
+    }
+
+    @Test
+    void sync_shouldNotWaitForDownloadOfAnotherDistribution() throws Exception {
+        DistributionSourceFiles distributionSourceFiles = new DistributionSourceFiles(new S3Downloader(s3Client, 1024 * 1024, 4),
+                                                                                      new ZipExtractor(2, Long.MAX_VALUE),
+                                                                                      new WorkspaceCloner(WorkspaceCloner.Strategy.COPY),
+                                                                                      new WorkspaceReaper(tempDirectory.resolve("trash")),
+                                                                                      tempDirectory.resolve("cache"),
+                                                                                      Long.MAX_VALUE,
+                                                                                      false);
+        FileUtils.deleteQuietly(distributionSourceFiles.sync(jobData("dist-a", "1")).toFile());
+        s3Client.blockedKey = "prefix/dist-b.zip";
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        CompletableFuture<Path> blockedSync = CompletableFuture.supplyAsync(() -> distributionSourceFiles.sync(jobData("dist-b", "1")), executor);
+        assertTrue(s3Client.blockedDownloadStarted.await(5, TimeUnit.SECONDS));
+        CompletableFuture<Path> cachedSync = CompletableFuture.supplyAsync(() -> distributionSourceFiles.sync(jobData("dist-a", "1")), executor);
+        Path cached;
+        try {
+            cached = cachedSync.get(1, TimeUnit.SECONDS);
+        } finally {
+            s3Client.releaseDownload.countDown();
+        }
+
+        assertEquals("content of a", Files.readString(cached.resolve("a.txt")));
+        assertEquals("content of b", Files.readString(blockedSync.get(5, TimeUnit.SECONDS).resolve("b.txt")));
+        FileUtils.deleteQuietly(cached.toFile());
+        FileUtils.deleteQuietly(blockedSync.get().toFile());
+        executor.shutdown();
+    }
+
+    @Test
+    void sync_shouldNotWaitForDeleteOfEvictedTemplate() throws Exception {
+        CountDownLatch reapStarted = new CountDownLatch(1);
+        CountDownLatch releaseReap = new CountDownLatch(1);
+        WorkspaceReaper slowReaper = new WorkspaceReaper(tempDirectory.resolve("trash")) {
+            @Override
+            public void reap(Path path) {
+                reapStarted.countDown();
+                try {
+                    releaseReap.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.reap(path);
+            }
+        };
+        DistributionSourceFiles distributionSourceFiles = new DistributionSourceFiles(new S3Downloader(s3Client, 1024 * 1024, 4),
+                                                                                      new ZipExtractor(2, Long.MAX_VALUE),
+                                                                                      new WorkspaceCloner(WorkspaceCloner.Strategy.COPY),
+                                                                                      slowReaper,
+                                                                                      tempDirectory.resolve("cache"),
+                                                                                      "content of a".length() + 10,
+                                                                                      false);
+        FileUtils.deleteQuietly(distributionSourceFiles.sync(jobData("dist-a", "1")).toFile());
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        // caching b evicts a, and the delete of a blocks
+        CompletableFuture<Path> evictingSync = CompletableFuture.supplyAsync(() -> distributionSourceFiles.sync(jobData("dist-b", "1")), executor);
+        assertTrue(reapStarted.await(5, TimeUnit.SECONDS));
+        CompletableFuture<Path> cachedSync = CompletableFuture.supplyAsync(() -> distributionSourceFiles.sync(jobData("dist-b", "1")), executor);
+        Path cached;
+        try {
+            cached = cachedSync.get(1, TimeUnit.SECONDS);
+        } finally {
+            releaseReap.countDown();
+        }
+
+        assertEquals("content of b", Files.readString(cached.resolve("b.txt")));
+        assertEquals(2, s3Client.downloads.get());
+        FileUtils.deleteQuietly(cached.toFile());
+        FileUtils.deleteQuietly(evictingSync.get(5, TimeUnit.SECONDS).toFile());
+        executor.shutdown();
+    }
+
+    private void putZip(String distributionName, String fileName, String content) throws IOException {
+        ByteArrayOutputStream zip = new ByteArrayOutputStream();
+        try (ZipOutputStream zipOutputStream = new ZipOutputStream(zip)) {
+            zipOutputStream.putNextEntry(new ZipEntry(fileName));
+            zipOutputStream.write(content.getBytes(StandardCharsets.UTF_8));
+            zipOutputStream.closeEntry();
+        }
+        s3Client.putObject(PutObjectRequest.builder().bucket(BUCKET).key("prefix/" + distributionName + ".zip").build(),
+                           RequestBody.fromBytes(zip.toByteArray()));
+    }
+
+    private static JobData jobData(String distributionName, String objectIdentifier) {
+        return new JobData(List.of(""),
+                           "",
+                           "",
+                           "",
+                           "arn:aws:states:eu-west-1:123:execution:test:" + distributionName,
+                           "dev",
+                           distributionName,
+                           1,
+                           "test-step",
+                           BUCKET,
+                           "prefix",
+                           objectIdentifier,
+                           "",
+                           Map.of());
+    }
+
+    private static class CountingS3Client extends InMemoryS3Client {
+
+        private final AtomicInteger downloads = new AtomicInteger();
+        private final CountDownLatch blockedDownloadStarted = new CountDownLatch(1);
+        private final CountDownLatch releaseDownload = new CountDownLatch(1);
+        private volatile String blockedKey;
+
+        @Override
+        public <ReturnT> ReturnT getObject(GetObjectRequest getObjectRequest,
+                                           ResponseTransformer<GetObjectResponse, ReturnT> responseTransformer) {
+            downloads.incrementAndGet();
+            if (getObjectRequest.key().equals(blockedKey)) {
+                blockedDownloadStarted.countDown();
+                try {
+                    releaseDownload.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return super.getObject(getObjectRequest, responseTransformer);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package se.attini.runner;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.core.sync.ResponseTransformer;
+import software.amazon.awssdk.http.AbortableInputStream;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+/**
+ * A local stand-in for S3 that keeps objects in memory, keyed by bucket and key.
+ */
+class InMemoryS3Client implements S3Client {
+
+    private final Map<String, byte[]> objects = new ConcurrentSkipListMap<>();
+    private final Map<String, String> eTags = new ConcurrentSkipListMap<>();
+
+    @Override
+    public PutObjectResponse putObject(PutObjectRequest putObjectRequest, RequestBody requestBody) {
+        try (InputStream inputStream = requestBody.contentStreamProvider().newStream()) {
+            byte[] object = inputStream.readAllBytes();
+            eTags.put(putObjectRequest.bucket() + "/" + putObjectRequest.key(), "\"" + Arrays.hashCode(object) + "\"");
+            objects.put(putObjectRequest.bucket() + "/" + putObjectRequest.key(), object);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return PutObjectResponse.builder().build();
+    }
+
+    @Override
+    public <ReturnT> ReturnT getObject(GetObjectRequest getObjectRequest,
+                                       ResponseTransformer<GetObjectResponse, ReturnT> responseTransformer) {
+        byte[] object = getObject(getObjectRequest.bucket(), getObjectRequest.key());
+        if (object == null) {
+            throw NoSuchKeyException.builder().message("No such key: " + getObjectRequest.key()).build();
+        }
+        String eTag = eTags.get(getObjectRequest.bucket() + "/" + getObjectRequest.key());
+        if (getObjectRequest.ifMatch() != null && !getObjectRequest.ifMatch().equals(eTag)) {
+            throw S3Exception.builder().statusCode(412).message("Precondition failed").build();
+        }
+        GetObjectResponse.Builder response = GetObjectResponse.builder().eTag(eTag);
+        int start = 0;
+        int end = object.length;
+        if (getObjectRequest.range() != null) {
+            String[] range = getObjectRequest.range().substring("bytes=".length()).split("-");
+            start = Integer.parseInt(range[0]);
+            if (start >= object.length) {
+                throw S3Exception.builder().statusCode(416).message("Range not satisfiable").build();
+            }
+            end = Math.min(object.length, Integer.parseInt(range[1]) + 1);
+            response.contentRange("bytes " + start + "-" + (end - 1) + "/" + object.length);
+        }
+        try {
+            return responseTransformer.transform(response.contentLength((long) end - start).build(),
+                                                 AbortableInputStream.create(new ByteArrayInputStream(object,
+                                                                                                      start,
+                                                                                                      end - start)));
+        } catch (Exception e) {
+            throw SdkClientException.create("Could not transform response", e);
+        }
+    }
+
+    byte[] getObject(String bucket, String key) {
+        return objects.get(bucket + "/" + key);
+    }
+
+    /**
+     * @return the objects in the bucket whose keys start with the prefix, in key order
+     */
+    Map<String, byte[]> listObjects(String bucket, String prefix) {
+        Map<String, byte[]> result = new TreeMap<>();
+        objects.forEach((key, value) -> {
+            if (key.startsWith(bucket + "/" + prefix)) {
+                result.put(key.substring(bucket.length() + 1), value);
+            }
+        });
+        return result;
+    }
+
+    @Override
+    public String serviceName() {
+        return "s3";
+    }
+
+    @Override
+    public void close() {
+    }
+}
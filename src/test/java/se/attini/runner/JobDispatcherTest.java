@@ -0,0 +1,289 @@
+package se.attini.runner;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.mockito.InjectMock;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.GetItemResponse;
+import software.amazon.awssdk.services.sqs.SqsClient;
+import software.amazon.awssdk.services.sqs.model.BatchResultErrorEntry;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchRequest;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchResponse;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchResultEntry;
+import software.amazon.awssdk.services.sqs.model.Message;
+
+@QuarkusTest
+class JobDispatcherTest {
+
+    @InjectMock
+    EnvironmentVariables environmentVariables;
+    @InjectMock
+    Shutdown shutdown;
+    @InjectMock
+    JobCreator jobCreator;
+    @InjectMock
+    ScriptRunner scriptRunner;
+    @InjectMock
+    SqsClient sqsClient;
+    @InjectMock
+    DynamoDbClient dynamoDbClient;
+    @InjectMock
+    ContainerMetadataFacade containerMetadataFacade;
+    @InjectMock
+    DistributionSourceFiles distributionSourceFiles;
+    @InjectMock
+    SfnFacade sfnFacade;
+    @InjectMock
+    S3Logger s3Logger;
+
+    JobSlots jobSlots;
+
+    @BeforeEach
+    void setUp() throws InterruptedException {
+        when(environmentVariables.getJobConcurrency()).thenReturn(5);
+        when(environmentVariables.getQueueUrl()).thenReturn("test-queue");
+        when(environmentVariables.getOwnershipCheckInterval()).thenReturn(3600);
+        when(containerMetadataFacade.refreshMetadata()).thenReturn(new ContainerMetadata(false, "12323", "test.test"));
+        when(dynamoDbClient.getItem(any(GetItemRequest.class)))
+                .thenReturn(GetItemResponse.builder()
+                                           .item(Map.of("taskId",
+                                                        AttributeValue.builder().s("12323").build(),
+                                                        "executionArns",
+                                                        AttributeValue.builder()
+                                                                      .m(Map.of("DeployApp",
+                                                                                AttributeValue.builder()
+                                                                                              .s("current-arn")
+                                                                                              .build()))
+                                                                      .build()))
+                                           .build());
+        when(scriptRunner.runScript(any(), anyInt(), any())).thenReturn(new ScriptResult(0, null));
+        jobSlots = new JobSlots(environmentVariables);
+    }
+
+    @Test
+    void dispatch_shouldDeleteStartedAndStaleMessagesInOneBatch() throws InterruptedException {
+        when(sqsClient.deleteMessageBatch(any(DeleteMessageBatchRequest.class))).thenReturn(
+                DeleteMessageBatchResponse.builder()
+                                          .successful(DeleteMessageBatchResultEntry.builder().id("0").build(),
+                                                      DeleteMessageBatchResultEntry.builder().id("1").build())
+                                          .build());
+
+        createJobDispatcher().dispatch(receive(message("job-1", "current-arn"), message("job-2", "old-arn")));
+
+        ArgumentCaptor<DeleteMessageBatchRequest> captor = ArgumentCaptor.forClass(DeleteMessageBatchRequest.class);
+        verify(sqsClient).deleteMessageBatch(captor.capture());
+        assertEquals(List.of("job-2", "job-1"),
+                     captor.getValue()
+                           .entries()
+                           .stream()
+                           .map(DeleteMessageBatchRequestEntry::receiptHandle)
+                           .toList());
+        verify(scriptRunner, timeout(5000).times(1)).runScript(any(), anyInt(), any());
+    }
+
+    @Test
+    void dispatch_shouldNotStartJobWhenDeleteFails() throws InterruptedException {
+        when(sqsClient.deleteMessageBatch(any(DeleteMessageBatchRequest.class))).thenReturn(
+                DeleteMessageBatchResponse.builder()
+                                          .failed(BatchResultErrorEntry.builder()
+                                                                       .id("0")
+                                                                       .code("ReceiptHandleIsInvalid")
+                                                                       .build())
+                                          .build());
+
+        createJobDispatcher().dispatch(receive(message("job-1", "current-arn")));
+
+        verify(scriptRunner, never()).runScript(any(), anyInt(), any());
+        assertEquals(0, jobSlots.getQueueDepth());
+        assertEquals(5, jobSlots.acquire(10, 1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void dispatch_shouldReleaseSlotsWhenContainerIsStopping() throws InterruptedException {
+        when(containerMetadataFacade.refreshMetadata()).thenReturn(new ContainerMetadata(true, "12323", "test.test"));
+
+        createJobDispatcher().dispatch(receive(message("job-1", "current-arn"), message("job-2", "current-arn")));
+
+        verify(sqsClient, never()).deleteMessageBatch(any(DeleteMessageBatchRequest.class));
+        assertEquals(5, jobSlots.acquire(10, 1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void dispatch_shouldReleaseSlotBeforeJobIsFinalized() throws InterruptedException {
+        when(sqsClient.deleteMessageBatch(any(DeleteMessageBatchRequest.class))).thenReturn(
+                DeleteMessageBatchResponse.builder()
+                                          .successful(DeleteMessageBatchResultEntry.builder().id("0").build())
+                                          .build());
+        CountDownLatch finalizeStarted = new CountDownLatch(1);
+        CountDownLatch releaseFinalize = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            finalizeStarted.countDown();
+            releaseFinalize.await(5, TimeUnit.SECONDS);
+            return null;
+        }).when(s3Logger).syncToS3(any());
+
+        createJobDispatcher().dispatch(receive(message("job-1", "current-arn")));
+
+        assertTrue(finalizeStarted.await(5, TimeUnit.SECONDS));
+        assertEquals(0, jobSlots.getQueueDepth());
+        assertEquals(5, jobSlots.acquire(10, 1, TimeUnit.SECONDS));
+        releaseFinalize.countDown();
+        verify(sfnFacade, timeout(5000)).setTaskSuccess(any(), any(), any());
+    }
+
+    @Test
+    void dispatch_shouldNotAdmitNewJobsWhileFinalizeIsSaturated() throws InterruptedException {
+        // one job slot gives a finalize pool with one thread and room for one queued job
+        when(environmentVariables.getJobConcurrency()).thenReturn(1);
+        jobSlots = new JobSlots(environmentVariables);
+        when(sqsClient.deleteMessageBatch(any(DeleteMessageBatchRequest.class))).thenReturn(
+                DeleteMessageBatchResponse.builder()
+                                          .successful(DeleteMessageBatchResultEntry.builder().id("0").build())
+                                          .build());
+        CountDownLatch releaseFinalize = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            releaseFinalize.await(10, TimeUnit.SECONDS);
+            return null;
+        }).when(s3Logger).syncToS3(any());
+        JobDispatcher jobDispatcher = createJobDispatcher();
+
+        jobDispatcher.dispatch(receive(message("job-1", "current-arn")));
+        jobDispatcher.dispatch(receive(message("job-2", "current-arn")));
+        jobDispatcher.dispatch(receive(message("job-3", "current-arn")));
+
+        verify(scriptRunner, timeout(5000).times(3)).runScript(any(), anyInt(), any());
+        assertEquals(0, jobSlots.acquire(1, 500, TimeUnit.MILLISECONDS));
+        releaseFinalize.countDown();
+        assertEquals(1, jobSlots.acquire(1, 5, TimeUnit.SECONDS));
+        verify(sfnFacade, timeout(5000).times(3)).setTaskSuccess(any(), any(), any());
+    }
+
+    @Test
+    void finalizeExecutorService_shouldRunQueuedJobOnCallerWhenShutDownDuringHandOff() throws Exception {
+        ExecutorService finalizeExecutorService = JobDispatcher.createFinalizeExecutorService(1);
+        CountDownLatch blockWorker = new CountDownLatch(1);
+        CountDownLatch thirdJobFinalized = new CountDownLatch(1);
+        finalizeExecutorService.execute(() -> {
+            try {
+                blockWorker.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        finalizeExecutorService.execute(() -> {
+        });
+        Thread jobThread = new Thread(() -> finalizeExecutorService.execute(thirdJobFinalized::countDown));
+        jobThread.start();
+        while (jobThread.getState() != Thread.State.WAITING) {
+            Thread.sleep(10);
+        }
+
+        // drains the queued job, which lets the waiting hand-off put its job in the queue after the workers are gone
+        finalizeExecutorService.shutdownNow();
+        jobThread.join(5000);
+
+        assertTrue(thirdJobFinalized.await(5, TimeUnit.SECONDS));
+        assertTrue(finalizeExecutorService.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void dispatch_shouldReportResourceUsageWhenEnabled() throws InterruptedException {
+        ResourceUsage resourceUsage = new ResourceUsage(1000, 500, 1024, 10, 20, 2);
+        when(scriptRunner.runScript(any(), anyInt(), any())).thenReturn(new ScriptResult(0, resourceUsage));
+        when(environmentVariables.isResourceUsageOutputEnabled()).thenReturn(true);
+        when(sqsClient.deleteMessageBatch(any(DeleteMessageBatchRequest.class))).thenReturn(
+                DeleteMessageBatchResponse.builder()
+                                          .successful(DeleteMessageBatchResultEntry.builder().id("0").build())
+                                          .build());
+
+        createJobDispatcher().dispatch(receive(message("job-1", "current-arn")));
+
+        verify(sfnFacade, timeout(5000)).setTaskSuccess(any(), any(), eq(resourceUsage));
+    }
+
+    @Test
+    void dispatch_shouldNotReportResourceUsageWhenDisabled() throws InterruptedException {
+        when(scriptRunner.runScript(any(), anyInt(), any())).thenReturn(new ScriptResult(0, new ResourceUsage(1000, 500, 1024, 10, 20, 2)));
+        when(environmentVariables.isResourceUsageOutputEnabled()).thenReturn(false);
+        when(sqsClient.deleteMessageBatch(any(DeleteMessageBatchRequest.class))).thenReturn(
+                DeleteMessageBatchResponse.builder()
+                                          .successful(DeleteMessageBatchResultEntry.builder().id("0").build())
+                                          .build());
+
+        createJobDispatcher().dispatch(receive(message("job-1", "current-arn")));
+
+        verify(sfnFacade, timeout(5000)).setTaskSuccess(any(), any(), isNull());
+    }
+
+    /**
+     * Take one slot per message, the same way the SqsListener does before handing messages over.
+     */
+    private List<Message> receive(Message... messages) throws InterruptedException {
+        assertEquals(messages.length, jobSlots.acquire(messages.length, 1, TimeUnit.SECONDS));
+        jobSlots.jobsQueued(messages.length);
+        return List.of(messages);
+    }
+
+    private static Message message(String receiptHandle, String executionArn) {
+        return Message.builder()
+                      .receiptHandle(receiptHandle)
+                      .body("""
+                                    {
+                                       "Properties":{
+                                          "Commands":["echo hello"]
+                                       },
+                                       "deploymentPlanExecutionMetadata":{
+                                          "sfnToken":"test-sfn-token",
+                                          "stepName":"DeployApp",
+                                          "executionArn":"%s"
+                                       },
+                                       "deploymentOriginData":{
+                                          "distributionName":"test-demo",
+                                          "environment":"dev"
+                                       }
+                                    }
+                                    """.formatted(executionArn))
+                      .build();
+    }
+
+    private JobDispatcher createJobDispatcher() {
+        return new JobDispatcher(environmentVariables,
+                                 shutdown,
+                                 jobCreator,
+                                 scriptRunner,
+                                 sqsClient,
+                                 containerMetadataFacade,
+                                 distributionSourceFiles,
+                                 sfnFacade,
+                                 s3Logger,
+                                 jobSlots,
+                                 new DeploymentExecutionCache(dynamoDbClient, environmentVariables),
+                                 new RunnerOwnership(dynamoDbClient, environmentVariables),
+                                 new WorkspaceReaper(Path.of(System.getProperty("java.io.tmpdir"), "attini-test-trash")));
+    }
+}
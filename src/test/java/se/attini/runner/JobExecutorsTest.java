@@ -0,0 +1,95 @@
+package se.attini.runner;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledForJreRange;
+import org.junit.jupiter.api.condition.JRE;
+
+class JobExecutorsTest {
+
+    @Test
+    void parseExecutorMode_shouldIgnoreCase() {
+        assertEquals(JobExecutors.Mode.VIRTUAL, EnvironmentVariables.parseExecutorMode("virtual"));
+        assertEquals(JobExecutors.Mode.LIGHTWEIGHT, EnvironmentVariables.parseExecutorMode("LightWeight"));
+        assertEquals(JobExecutors.Mode.PLATFORM, EnvironmentVariables.parseExecutorMode("PLATFORM"));
+    }
+
+    @Test
+    void parseExecutorMode_shouldDefaultToPlatform() {
+        assertEquals(JobExecutors.Mode.PLATFORM, EnvironmentVariables.parseExecutorMode(null));
+        assertEquals(JobExecutors.Mode.PLATFORM, EnvironmentVariables.parseExecutorMode("green"));
+    }
+
+    @Test
+    void create_lightweightShouldRunTasksOnNamedDaemonThreads() throws Throwable {
+        ExecutorService executorService = JobExecutors.create(JobExecutors.Mode.LIGHTWEIGHT, "test-thread", 1);
+        try {
+            Thread thread = runAndGetThread(executorService);
+
+            assertInstanceOf(ThreadPoolExecutor.class, executorService);
+            assertEquals("test-thread-1", thread.getName());
+            assertTrue(thread.isDaemon());
+            assertFalse(isVirtual(thread));
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    @Test
+    @EnabledForJreRange(max = JRE.JAVA_20)
+    void create_virtualShouldFallBackToLightweightThreadsBeforeJava21() throws Exception {
+        ExecutorService executorService = JobExecutors.create(JobExecutors.Mode.VIRTUAL, "test-thread", 1);
+        try {
+            Thread thread = runAndGetThread(executorService);
+
+            assertInstanceOf(ThreadPoolExecutor.class, executorService);
+            assertEquals("test-thread-1", thread.getName());
+            assertTrue(thread.isDaemon());
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    @Test
+    @EnabledForJreRange(min = JRE.JAVA_21)
+    void create_virtualShouldRunTasksOnVirtualThreads() throws Throwable {
+        ExecutorService executorService = JobExecutors.create(JobExecutors.Mode.VIRTUAL, "test-thread", 1);
+        try {
+            Thread thread = runAndGetThread(executorService);
+
+            assertTrue(isVirtual(thread));
+            assertEquals("test-thread-1", thread.getName());
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    private static Thread runAndGetThread(ExecutorService executorService) throws InterruptedException, ExecutionException, TimeoutException {
+        return executorService.submit(Thread::currentThread).get(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Thread.isVirtual is only available from Java 21, and the tests are compiled for Java 17.
+     */
+    private static boolean isVirtual(Thread thread) throws Throwable {
+        try {
+            return (boolean) MethodHandles.publicLookup()
+                                          .findVirtual(Thread.class, "isVirtual", MethodType.methodType(boolean.class))
+                                          .invoke(thread);
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package se.attini.runner;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.quarkus.test.junit.QuarkusTest;
+
+@QuarkusTest
+class LogReaderTest {
+
+    private static final String KEY = "attini/deployment/logs/runner////test-step/";
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    InMemoryS3Client inMemoryS3Client;
+
+    LogReader logReader;
+
+    @BeforeEach
+    void setUp() {
+        inMemoryS3Client = new InMemoryS3Client();
+        logReader = new LogReader(new S3Downloader(inMemoryS3Client, 64, 4), objectMapper);
+    }
+
+    @Test
+    void read_shouldReadCompressedChunksInOrder() throws InterruptedException {
+        JobData jobData = TestJobData.createJobData();
+        logLines(LogUploader.Mode.CHUNKED_GZIP, jobData, 0);
+
+        List<String> lines = readData(jobData, Long.MIN_VALUE, Long.MAX_VALUE);
+
+        assertEquals(IntStream.range(0, 40).mapToObj(i -> "line " + i).toList(), lines);
+        assertTrue(inMemoryS3Client.listObjects(jobData.sourceBucket(), KEY + "/")
+                                   .keySet()
+                                   .stream()
+                                   .filter(key -> !key.endsWith(ChunkedLogUploader.MANIFEST_NAME))
+                                   .allMatch(key -> key.endsWith(".log.gz")));
+    }
+
+    @Test
+    void read_shouldFindCombinedLogOfCompressedChunksAtLogKey() throws Exception {
+        JobData jobData = TestJobData.createJobData();
+        logLines(LogUploader.Mode.CHUNKED_GZIP, jobData, 20);
+
+        List<String> lines = new String(inMemoryS3Client.getObject(jobData.sourceBucket(), KEY), StandardCharsets.UTF_8)
+                .lines()
+                .toList();
+
+        assertEquals(40, lines.size());
+        for (int i = 0; i < lines.size(); i++) {
+            assertEquals("line " + i, objectMapper.readTree(lines.get(i)).get("data").asText());
+        }
+    }
+
+    @Test
+    void read_shouldOnlyReadLinesInTimeRange() throws InterruptedException {
+        JobData jobData = TestJobData.createJobData();
+        long boundary = logLines(LogUploader.Mode.CHUNKED_GZIP, jobData, 20);
+
+        List<String> lines = readData(jobData, boundary, Long.MAX_VALUE);
+
+        assertEquals(IntStream.range(20, 40).mapToObj(i -> "line " + i).toList(), lines);
+    }
+
+    @Test
+    void read_shouldReadWholeFileLogs() throws InterruptedException {
+        JobData jobData = TestJobData.createJobData();
+        long boundary = logLines(LogUploader.Mode.WHOLE_FILE, jobData, 10);
+
+        assertEquals(40, readData(jobData, Long.MIN_VALUE, Long.MAX_VALUE).size());
+        assertEquals(10, readData(jobData, Long.MIN_VALUE, boundary).size());
+    }
+
+    /**
+     * Log 40 lines, with a pause after the given number of lines.
+     *
+     * @return a timestamp after the lines logged before the pause and before the lines logged after it
+     */
+    private long logLines(LogUploader.Mode mode, JobData jobData, int pauseAfter) throws InterruptedException {
+        S3Logger s3Logger = new S3Logger(inMemoryS3Client, objectMapper, mode, new LogSpool(Long.MAX_VALUE), 0, 0);
+        long boundary = 0;
+        for (int i = 0; i < 40; i++) {
+            if (i == pauseAfter) {
+                Thread.sleep(20);
+                boundary = System.currentTimeMillis();
+                Thread.sleep(20);
+            }
+            log(s3Logger, "line " + i, jobData);
+        }
+        s3Logger.syncToS3(jobData);
+        return boundary;
+    }
+
+    private List<String> readData(JobData jobData, long from, long to) {
+        List<String> lines = new ArrayList<>();
+        logReader.read(jobData.sourceBucket(), KEY, from, to, line -> {
+            try {
+                lines.add(objectMapper.readTree(line).get("data").asText());
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        return lines;
+    }
+
+    private static void log(S3Logger s3Logger, String line, JobData jobData) {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        s3Logger.log(bytes, 0, bytes.length, jobData);
+    }
+}
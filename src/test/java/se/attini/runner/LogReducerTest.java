@@ -0,0 +1,79 @@
+package se.attini.runner;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+class LogReducerTest {
+
+    @Test
+    void accept_shouldCollapseCarriageReturns() {
+        LogReducer logReducer = new LogReducer(0);
+        List<String> output = new ArrayList<>();
+
+        accept(logReducer, "Downloading 10%\rDownloading 50%\rDownloading 100%\r", output);
+        accept(logReducer, "done\r", output);
+        logReducer.finish(collect(output));
+
+        assertEquals(List.of("Downloading 100%", "done"), output);
+        assertEquals(2, logReducer.getStats().getCollapsedProgressUpdates());
+    }
+
+    @Test
+    void accept_shouldFoldRepeatedLines() {
+        LogReducer logReducer = new LogReducer(0);
+        List<String> output = new ArrayList<>();
+
+        accept(logReducer, "waiting", output);
+        accept(logReducer, "waiting", output);
+        accept(logReducer, "waiting", output);
+        accept(logReducer, "ready", output);
+        accept(logReducer, "ready", output);
+        logReducer.finish(collect(output));
+
+        assertEquals(List.of("waiting",
+                             "[previous line repeated 2 more times]",
+                             "ready",
+                             "[previous line repeated 1 more times]"), output);
+        assertEquals(3, logReducer.getStats().getFoldedRepeats());
+    }
+
+    @Test
+    void accept_shouldRateLimitLines() {
+        AtomicLong clock = new AtomicLong();
+        LogReducer logReducer = new LogReducer(2, clock::get);
+        List<String> output = new ArrayList<>();
+
+        for (int i = 0; i < 5; i++) {
+            accept(logReducer, "line " + i, output);
+        }
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        accept(logReducer, "line 5", output);
+        accept(logReducer, "line 6", output);
+        accept(logReducer, "line 7", output);
+        logReducer.finish(collect(output));
+
+        assertEquals(List.of("line 0",
+                             "line 1",
+                             "[3 lines dropped, output is limited to 2 lines per second]",
+                             "line 5",
+                             "line 6",
+                             "[1 lines dropped, output is limited to 2 lines per second]"), output);
+        assertEquals(4, logReducer.getStats().getRateLimitedLines());
+    }
+
+    private static void accept(LogReducer logReducer, String line, List<String> output) {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        logReducer.accept(bytes, 0, bytes.length, collect(output));
+    }
+
+    private static LineConsumer collect(List<String> output) {
+        return (buffer, offset, length) -> output.add(new String(buffer, offset, length, StandardCharsets.UTF_8));
+    }
+}
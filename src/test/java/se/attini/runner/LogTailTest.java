@@ -0,0 +1,97 @@
+package se.attini.runner;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.mockito.InjectMock;
+
+@QuarkusTest
+class LogTailTest {
+
+    @InjectMock
+    EnvironmentVariables environmentVariables;
+
+    LogTail logTail;
+
+    HttpClient httpClient;
+
+    @BeforeEach
+    void setUp() {
+        when(environmentVariables.getLogTailPort()).thenReturn(0);
+        when(environmentVariables.getLogTailHost()).thenReturn("127.0.0.1");
+        logTail = new LogTail(environmentVariables, new ObjectMapper());
+        logTail.start();
+        httpClient = HttpClient.newHttpClient();
+    }
+
+    @AfterEach
+    void tearDown() {
+        logTail.stop();
+    }
+
+    @Test
+    void jobs_shouldStreamOutputOfRunningJob() throws Exception {
+        JobData jobData = TestJobData.createJobData();
+        logTail.jobStarted(jobData);
+
+        HttpResponse<String> jobs = httpClient.send(request(""), HttpResponse.BodyHandlers.ofString());
+        assertEquals("[\"" + LogTail.jobName(jobData) + "\"]", jobs.body());
+
+        HttpResponse<Stream<String>> stream = httpClient.sendAsync(request("/" + LogTail.jobName(jobData)),
+                                                                   HttpResponse.BodyHandlers.ofLines())
+                                                        .get(5, TimeUnit.SECONDS);
+        assertEquals(200, stream.statusCode());
+        publish(jobData, "first line");
+        publish(jobData, "second line");
+        logTail.jobFinished(jobData);
+
+        List<String> events = stream.body().filter(line -> !line.isEmpty() && !line.startsWith(":")).toList();
+        assertEquals(List.of("data: first line", "data: second line", "event: end", "data: "), events);
+    }
+
+    @Test
+    void jobs_shouldReturnNotFoundForUnknownJob() throws IOException, InterruptedException {
+        HttpResponse<String> response = httpClient.send(request("/unknown"), HttpResponse.BodyHandlers.ofString());
+
+        assertEquals(404, response.statusCode());
+    }
+
+    @Test
+    void publish_shouldNotBlockWithoutSubscribers() {
+        JobData jobData = TestJobData.createJobData();
+        logTail.jobStarted(jobData);
+
+        for (int i = 0; i < 100_000; i++) {
+            publish(jobData, "line " + i);
+        }
+        logTail.jobFinished(jobData);
+
+        assertTrue(logTail.getPort() > 0);
+    }
+
+    private HttpRequest request(String path) {
+        return HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + logTail.getPort() + "/jobs" + path)).build();
+    }
+
+    private void publish(JobData jobData, String line) {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        logTail.publish(jobData, bytes, 0, bytes.length);
+    }
+}
@@ -0,0 +1,126 @@
+package se.attini.runner;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+
+/**
+ * Measures how fast the output of a script that writes 1 GB of log lines can be read. It is not run as a test.
+ * Run it with the test classpath, for example
+ * <pre>
+ * mvn -B test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+ * java -cp target/classes:target/test-classes:$(cat target/cp.txt) se.attini.runner.OutputPumpBenchmark log
+ * </pre>
+ * The modes are
+ * <ul>
+ *     <li>{@code reader}, which splits the output with {@code process.inputReader().lines()}, the way it was read
+ *     before the pump, and does nothing with the lines.</li>
+ *     <li>{@code pump}, which splits the output with the {@link OutputPump} and does nothing with the lines.</li>
+ *     <li>{@code log}, which pumps the output into an {@link S3Logger}, the way a job's output is logged, with
+ *     uploads that are discarded.</li>
+ * </ul>
+ * The second argument is the number of bytes to write, 1 GB by default.
+ */
+public class OutputPumpBenchmark {
+
+    private static final String LINE = "INFO 2026-10-18T10:00:00Z deploying resource arn:aws:cloudformation:stack/example progress ok";
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "log";
+        long bytes = args.length > 1 ? Long.parseLong(args[1]) : 1024L * 1024 * 1024;
+        JobData jobData = new JobData(List.of(),
+                                      "token",
+                                      "receipt",
+                                      "{}",
+                                      "arn:aws:states:eu-west-1:123456789012:execution:deploy:benchmark",
+                                      "dev",
+                                      "distribution",
+                                      1,
+                                      "benchmark-step",
+                                      "bucket",
+                                      "prefix",
+                                      "object",
+                                      "distribution-id",
+                                      Map.of());
+        S3Logger s3Logger = new S3Logger(new DiscardingS3Client(),
+                                         new ObjectMapper(),
+                                         LogUploader.Mode.WHOLE_FILE,
+                                         new LogSpool(Long.MAX_VALUE),
+                                         Long.MAX_VALUE,
+                                         0);
+        Process process = new ProcessBuilder("/bin/sh", "-c", "yes '" + LINE + "' | head -c " + bytes)
+                .redirectErrorStream(true)
+                .start();
+
+        long start = System.nanoTime();
+        long[] lines = {0};
+        switch (mode) {
+            case "reader" -> process.inputReader().lines().forEach(line -> lines[0]++);
+            case "pump" -> {
+                try (InputStream inputStream = process.getInputStream()) {
+                    new OutputPump(256 * 1024, true).pump(inputStream, (buffer, offset, length) -> lines[0]++);
+                }
+            }
+            case "log" -> {
+                try (InputStream inputStream = process.getInputStream()) {
+                    new OutputPump(256 * 1024, true).pump(inputStream, (buffer, offset, length) -> {
+                        s3Logger.log(buffer, offset, length, jobData);
+                        lines[0]++;
+                    });
+                }
+                s3Logger.syncToS3(jobData);
+            }
+            default -> throw new IllegalArgumentException("Unknown mode " + mode + ", expected reader, pump or log");
+        }
+        process.waitFor();
+        long millis = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+
+        System.out.println(mode + ": " + lines[0] + " lines in " + millis + " ms, " + bytes / 1024 / 1024 * 1000 / millis + " MB/s");
+        System.out.println("allocated by the reading thread: " + allocatedBytes() / 1024 / 1024 + " MB");
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            System.out.println(gc.getName() + ": " + gc.getCollectionCount() + " collections in " + gc.getCollectionTime() + " ms");
+        }
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Reads the uploaded logs and throws them away, so that the benchmark measures the local part of logging.
+     */
+    private static class DiscardingS3Client implements S3Client {
+
+        @Override
+        public PutObjectResponse putObject(PutObjectRequest putObjectRequest, RequestBody requestBody) {
+            try (InputStream inputStream = requestBody.contentStreamProvider().newStream()) {
+                inputStream.transferTo(OutputStream.nullOutputStream());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return PutObjectResponse.builder().build();
+        }
+
+        @Override
+        public String serviceName() {
+            return "s3";
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
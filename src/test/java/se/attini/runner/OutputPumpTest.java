@@ -0,0 +1,71 @@
+package se.attini.runner;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class OutputPumpTest {
+
+    @Test
+    void pump_shouldSplitLinesLikeBufferedReader() throws IOException {
+        List<String> lines = pump(new OutputPump(1024, true), "first\nsecond\r\nthird\rfourth\n\nlast");
+
+        assertEquals(List.of("first", "second", "third", "fourth", "", "last"), lines);
+    }
+
+    @Test
+    void pump_shouldKeepCarriageReturnsWhenOnlySplittingOnLineFeeds() throws IOException {
+        List<String> lines = pump(new OutputPump(1024, false), "10%\r50%\r100%\ndone\n");
+
+        assertEquals(List.of("10%\r50%\r100%", "done"), lines);
+    }
+
+    @Test
+    void pump_shouldSplitLongLinesBetweenCharacters() throws IOException {
+        String longLine = "ab" + "ö".repeat(10);
+
+        List<String> lines = pump(new OutputPump(7, true), longLine + "\nshort\n");
+
+        assertEquals(List.of("aböö", "ööö", "ööö", "öö", "short"), lines);
+        assertEquals(longLine, String.join("", lines.subList(0, 4)));
+    }
+
+    private static List<String> pump(OutputPump outputPump, String output) throws IOException {
+        List<String> lines = new ArrayList<>();
+        outputPump.pump(new TrickleInputStream(output.getBytes(StandardCharsets.UTF_8)),
+                        (buffer, offset, length) -> lines.add(new String(buffer,
+                                                                         offset,
+                                                                         length,
+                                                                         StandardCharsets.UTF_8)));
+        return lines;
+    }
+
+    /**
+     * Returns at most three bytes per read, so that lines and characters span reads.
+     */
+    private static class TrickleInputStream extends InputStream {
+
+        private final ByteArrayInputStream inputStream;
+
+        TrickleInputStream(byte[] bytes) {
+            this.inputStream = new ByteArrayInputStream(bytes);
+        }
+
+        @Override
+        public int read() {
+            return inputStream.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            return inputStream.read(b, off, Math.min(len, 3));
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package se.attini.runner;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Map;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.mockito.InjectMock;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.GetItemResponse;
+
+@QuarkusTest
+class RunnerOwnershipTest {
+
+    @InjectMock
+    DynamoDbClient dynamoDbClient;
+
+    @InjectMock
+    EnvironmentVariables environmentVariables;
+
+    RunnerOwnership runnerOwnership;
+
+    @BeforeEach
+    void setUp() {
+        when(environmentVariables.getOwnershipCheckInterval()).thenReturn(3600);
+        when(dynamoDbClient.getItem(any(GetItemRequest.class)))
+                .thenReturn(GetItemResponse.builder()
+                                           .item(Map.of("taskId", AttributeValue.builder().s("task-1").build()))
+                                           .build());
+        runnerOwnership = new RunnerOwnership(dynamoDbClient, environmentVariables);
+    }
+
+    @Test
+    void isOwnedBy_shouldReuseRegisteredTaskId() {
+        assertTrue(runnerOwnership.isOwnedBy("task-1"));
+        assertTrue(runnerOwnership.isOwnedBy("task-1"));
+
+        verify(dynamoDbClient, times(1)).getItem(any(GetItemRequest.class));
+    }
+
+    @Test
+    void isOwnedBy_shouldConfirmMismatchWithConsistentRead() {
+        assertFalse(runnerOwnership.isOwnedBy("task-2"));
+
+        ArgumentCaptor<GetItemRequest> captor = ArgumentCaptor.forClass(GetItemRequest.class);
+        verify(dynamoDbClient, times(2)).getItem(captor.capture());
+        assertTrue(captor.getAllValues().get(1).consistentRead());
+    }
+}
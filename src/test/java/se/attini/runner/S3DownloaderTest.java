@@ -0,0 +1,114 @@
+package se.attini.runner;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.core.sync.ResponseTransformer;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+class S3DownloaderTest {
+
+    private static final String BUCKET = "bucket";
+
+    Path tempDirectory;
+    CountingS3Client s3Client;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        tempDirectory = Files.createTempDirectory("s3-downloader-test");
+        s3Client = new CountingS3Client();
+    }
+
+    @AfterEach
+    void tearDown() {
+        FileUtils.deleteQuietly(tempDirectory.toFile());
+    }
+
+    @Test
+    void download_shouldDownloadLargeObjectsInParts() throws IOException {
+        byte[] object = put("large", 10_000);
+        Path file = tempDirectory.resolve("large");
+
+        new S3Downloader(s3Client, 1024, 4).download(BUCKET, "large", file);
+
+        assertArrayEquals(object, Files.readAllBytes(file));
+        assertEquals(10, s3Client.requests.get());
+    }
+
+    @Test
+    void download_shouldDownloadSmallAndEmptyObjectsInOneStream() throws IOException {
+        byte[] small = put("small", 1000);
+        byte[] empty = put("empty", 0);
+        S3Downloader s3Downloader = new S3Downloader(s3Client, 1024, 4);
+
+        s3Downloader.download(BUCKET, "small", tempDirectory.resolve("small"));
+        assertEquals(1, s3Client.requests.get());
+        s3Downloader.download(BUCKET, "empty", tempDirectory.resolve("empty"));
+
+        assertArrayEquals(small, Files.readAllBytes(tempDirectory.resolve("small")));
+        assertArrayEquals(empty, Files.readAllBytes(tempDirectory.resolve("empty")));
+    }
+
+    @Test
+    void download_shouldFailIfObjectIsReplaced() throws IOException {
+        put("large", 10_000);
+        s3Client.replaceAfterFirstRequest = "large";
+
+        assertThrows(S3Exception.class,
+                     () -> new S3Downloader(s3Client, 1024, 4).download(BUCKET, "large", tempDirectory.resolve("large")));
+    }
+
+    @Test
+    void open_shouldReadLargeObjectsFromTemporaryFile() throws IOException {
+        byte[] object = put("large", 10_000);
+
+        try (InputStream inputStream = new S3Downloader(s3Client, 1024, 4).open(BUCKET, "large")) {
+            assertArrayEquals(object, inputStream.readAllBytes());
+        }
+        try (var files = Files.list(Path.of(System.getProperty("java.io.tmpdir")))) {
+            assertFalse(files.anyMatch(path -> path.getFileName().toString().startsWith("attini-s3-download")));
+        }
+    }
+
+    private byte[] put(String key, int size) {
+        byte[] object = new byte[size];
+        new Random(size).nextBytes(object);
+        s3Client.putObject(PutObjectRequest.builder().bucket(BUCKET).key(key).build(), RequestBody.fromBytes(object));
+        return object;
+    }
+
+    private static class CountingS3Client extends InMemoryS3Client {
+
+        private final AtomicInteger requests = new AtomicInteger();
+        private volatile String replaceAfterFirstRequest;
+
+        @Override
+        public <ReturnT> ReturnT getObject(GetObjectRequest getObjectRequest,
+                                           ResponseTransformer<GetObjectResponse, ReturnT> responseTransformer) {
+            ReturnT response = super.getObject(getObjectRequest, responseTransformer);
+            if (requests.incrementAndGet() == 1 && getObjectRequest.key().equals(replaceAfterFirstRequest)) {
+                putObject(PutObjectRequest.builder().bucket(BUCKET).key(getObjectRequest.key()).build(),
+                          RequestBody.fromString("replaced"));
+            }
+            return response;
+        }
+    }
+}
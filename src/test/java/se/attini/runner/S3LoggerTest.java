@@ -1,10 +1,29 @@
 package se.attini.runner;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import io.quarkus.test.junit.QuarkusTest;
@@ -19,21 +38,227 @@ class S3LoggerTest {
     @InjectMock
     S3Client s3Client;
 
+    @InjectMock
+    EnvironmentVariables environmentVariables;
+
     private final ObjectMapper objectMapper = new ObjectMapper();
 
     S3Logger s3Logger;
 
     @BeforeEach
     void setUp() {
-        s3Logger = new S3Logger(s3Client,objectMapper);
+        when(environmentVariables.getLogUploadMode()).thenReturn(LogUploader.Mode.WHOLE_FILE);
+        s3Logger = new S3Logger(s3Client, objectMapper, environmentVariables, new LogSpool(Long.MAX_VALUE));
     }
 
     @Test
     void log() {
         JobData jobData = TestJobData.createJobData();
-        s3Logger.log("this happened", jobData);
+        log(s3Logger, "this happened", jobData);
         s3Logger.syncToS3(jobData);
         verify(s3Client).putObject(any(PutObjectRequest.class), any(RequestBody.class));
 
     }
+
+    @Test
+    void syncToS3_shouldUploadOneJsonObjectPerLine() throws IOException {
+        JobData jobData = TestJobData.createJobData();
+        List<String> uploads = captureUploads(new CountDownLatch(0));
+
+        log(s3Logger, "first \"line\"", jobData);
+        log(s3Logger, "second line åäö", jobData);
+        s3Logger.syncToS3(jobData);
+
+        assertEquals(1, uploads.size());
+        String[] lines = uploads.get(0).split("\n", -1);
+        assertEquals(3, lines.length);
+        assertEquals("", lines[2]);
+        JsonNode first = objectMapper.readTree(lines[0]);
+        assertEquals("first \"line\"", first.get("data").asText());
+        assertEquals(true, first.get("timestamp").isLong());
+        assertEquals("second line åäö", objectMapper.readTree(lines[1]).get("data").asText());
+    }
+
+    @Test
+    void syncToS3_shouldWriteByteLinesAsTheyWouldBeWrittenAsStrings() throws IOException {
+        JobData jobData = TestJobData.createJobData();
+        List<String> uploads = captureUploads(new CountDownLatch(0));
+        byte[] ascii = "first \"line\"\twith\\escapes".getBytes(StandardCharsets.UTF_8);
+        byte[] utf8 = "second line åäö 🚀".getBytes(StandardCharsets.UTF_8);
+        byte[] malformed = {'b', 'a', 'd', ' ', (byte) 0xC3, '!', (byte) 0xED, (byte) 0xA0, (byte) 0x80};
+
+        s3Logger.log(ascii, 0, ascii.length, jobData);
+        s3Logger.log(utf8, 0, utf8.length, jobData);
+        s3Logger.log(malformed, 0, malformed.length, jobData);
+        s3Logger.syncToS3(jobData);
+
+        String[] lines = uploads.get(0).split("\n");
+        assertEquals(3, lines.length);
+        assertEquals("first \"line\"\twith\\escapes", objectMapper.readTree(lines[0]).get("data").asText());
+        assertEquals("second line åäö 🚀", objectMapper.readTree(lines[1]).get("data").asText());
+        assertEquals(new String(malformed, StandardCharsets.UTF_8), objectMapper.readTree(lines[2]).get("data").asText());
+    }
+
+    @Test
+    void log_shouldNotWaitForSlowUploads() throws InterruptedException {
+        JobData jobData = TestJobData.createJobData();
+        CountDownLatch uploadReleased = new CountDownLatch(1);
+        List<String> uploads = captureUploads(uploadReleased);
+        S3Logger syncingS3Logger = new S3Logger(s3Client, objectMapper, LogUploader.Mode.WHOLE_FILE, new LogSpool(Long.MAX_VALUE), 0, 0);
+
+        for (int i = 0; i < 100; i++) {
+            log(syncingS3Logger, "line " + i, jobData);
+        }
+        verify(s3Client, timeout(5000)).putObject(any(PutObjectRequest.class), any(RequestBody.class));
+        uploadReleased.countDown();
+        syncingS3Logger.syncToS3(jobData);
+
+        assertTrue(uploads.size() <= 3, "uploads should be coalesced, was " + uploads.size());
+        String finalUpload = uploads.get(uploads.size() - 1);
+        assertEquals(100, finalUpload.lines().count());
+    }
+
+    @Test
+    void syncToS3_chunked_shouldUploadEveryLineOnceInOrder() throws IOException, InterruptedException {
+        JobData jobData = TestJobData.createJobData();
+        InMemoryS3Client inMemoryS3Client = new InMemoryS3Client();
+        S3Logger chunkedS3Logger = new S3Logger(inMemoryS3Client,
+                                                objectMapper,
+                                                LogUploader.Mode.CHUNKED,
+                                                new LogSpool(Long.MAX_VALUE),
+                                                0,
+                                                0);
+
+        for (int i = 0; i < 50; i++) {
+            log(chunkedS3Logger, "line " + i, jobData);
+            if (i % 10 == 0) {
+                Thread.sleep(20);
+            }
+        }
+        chunkedS3Logger.syncToS3(jobData);
+
+        Map<String, byte[]> objects = inMemoryS3Client.listObjects(jobData.sourceBucket(), "attini/deployment/logs/runner/");
+        String manifestKey = objects.keySet()
+                                    .stream()
+                                    .filter(key -> key.endsWith("/" + ChunkedLogUploader.MANIFEST_NAME))
+                                    .findAny()
+                                    .orElseThrow();
+        String prefix = manifestKey.substring(0, manifestKey.lastIndexOf('/') + 1);
+        LogManifest manifest = objectMapper.readValue(objects.get(manifestKey), LogManifest.class);
+        assertTrue(manifest.complete());
+        // the chunks, the manifest and the combined log
+        assertEquals(objects.size() - 2, manifest.chunks().size());
+
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        for (LogManifest.Chunk chunk : manifest.chunks()) {
+            assertEquals(log.size(), chunk.offset());
+            byte[] content = objects.get(prefix + chunk.name());
+            assertEquals(chunk.length(), content.length);
+            log.write(content);
+        }
+        assertArrayEquals(log.toByteArray(), objects.get(prefix.substring(0, prefix.length() - 1)));
+        List<String> lines = log.toString(StandardCharsets.UTF_8).lines().toList();
+        assertEquals(50, lines.size());
+        for (int i = 0; i < lines.size(); i++) {
+            assertEquals("line " + i, objectMapper.readTree(lines.get(i)).get("data").asText());
+        }
+    }
+
+    @Test
+    void log_chunked_shouldEvictUploadedChunksWhenSpoolIsFull() {
+        JobData jobData = TestJobData.createJobData();
+        InMemoryS3Client inMemoryS3Client = new InMemoryS3Client();
+        LogSpool logSpool = new LogSpool(2_000);
+        S3Logger chunkedS3Logger = new S3Logger(inMemoryS3Client,
+                                                objectMapper,
+                                                LogUploader.Mode.CHUNKED,
+                                                logSpool,
+                                                60_000,
+                                                10_000);
+
+        for (int i = 0; i < 200; i++) {
+            log(chunkedS3Logger, "line " + i, jobData);
+        }
+        assertTrue(logSpool.getUsage() < 2_000 + 100);
+        chunkedS3Logger.syncToS3(jobData);
+
+        List<String> lines = new ArrayList<>();
+        new LogReader(new S3Downloader(inMemoryS3Client, 64, 4), objectMapper).read(jobData.sourceBucket(),
+                                                           "attini/deployment/logs/runner////test-step/",
+                                                           Long.MIN_VALUE,
+                                                           Long.MAX_VALUE,
+                                                           lines::add);
+        assertEquals(200, lines.size());
+        assertEquals(0, logSpool.getUsage());
+    }
+
+    @Test
+    void log_shouldTruncateWhenSpoolStaysFull() throws IOException {
+        JobData jobData = TestJobData.createJobData();
+        InMemoryS3Client inMemoryS3Client = new InMemoryS3Client();
+        LogSpool logSpool = new LogSpool(500);
+        S3Logger wholeFileS3Logger = new S3Logger(inMemoryS3Client,
+                                                  objectMapper,
+                                                  LogUploader.Mode.WHOLE_FILE,
+                                                  logSpool,
+                                                  60_000,
+                                                  10);
+
+        for (int i = 0; i < 50; i++) {
+            log(wholeFileS3Logger, "line " + i, jobData);
+        }
+        wholeFileS3Logger.syncToS3(jobData);
+
+        byte[] log = inMemoryS3Client.getObject(jobData.sourceBucket(), "attini/deployment/logs/runner////test-step/");
+        List<String> lines = new String(log, StandardCharsets.UTF_8).lines().toList();
+        String marker = objectMapper.readTree(lines.get(lines.size() - 1)).get("data").asText();
+        assertTrue(marker.matches("\\[\\d+ lines were not logged because the local log spool was full]"), marker);
+        long notLogged = Long.parseLong(marker.substring(1, marker.indexOf(' ')));
+        assertEquals(50, lines.size() - 1 + notLogged);
+        assertEquals(0, logSpool.getUsage());
+    }
+
+    @Test
+    void log_shouldDropLinesLoggedAfterTheFinalSync() {
+        JobData jobData = TestJobData.createJobData();
+        InMemoryS3Client inMemoryS3Client = new InMemoryS3Client();
+        LogSpool logSpool = new LogSpool(Long.MAX_VALUE);
+        S3Logger wholeFileS3Logger = new S3Logger(inMemoryS3Client,
+                                                  objectMapper,
+                                                  LogUploader.Mode.WHOLE_FILE,
+                                                  logSpool,
+                                                  0,
+                                                  10);
+
+        log(wholeFileS3Logger, "line 1", jobData);
+        wholeFileS3Logger.syncToS3(jobData);
+        String key = "attini/deployment/logs/runner////test-step/";
+        byte[] uploaded = inMemoryS3Client.getObject(jobData.sourceBucket(), key);
+
+        log(wholeFileS3Logger, "late line", jobData);
+        wholeFileS3Logger.syncToS3(jobData);
+
+        assertEquals(0, logSpool.getUsage());
+        assertArrayEquals(uploaded, inMemoryS3Client.getObject(jobData.sourceBucket(), key));
+    }
+
+    private List<String> captureUploads(CountDownLatch uploadReleased) {
+        List<String> uploads = new CopyOnWriteArrayList<>();
+        doAnswer(invocation -> {
+            assertTrue(uploadReleased.await(10, TimeUnit.SECONDS));
+            RequestBody requestBody = invocation.getArgument(1);
+            try (InputStream inputStream = requestBody.contentStreamProvider().newStream()) {
+                uploads.add(new String(inputStream.readAllBytes(), StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return null;
+        }).when(s3Client).putObject(any(PutObjectRequest.class), any(RequestBody.class));
+        return uploads;
+    }
+
+    private static void log(S3Logger s3Logger, String line, JobData jobData) {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        s3Logger.log(bytes, 0, bytes.length, jobData);
+    }
 }
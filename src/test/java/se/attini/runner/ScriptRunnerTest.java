@@ -1,18 +1,28 @@
 package se.attini.runner;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
-import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static se.attini.runner.TestJobData.createJobData;
 
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.InOrder;
 
 import io.quarkus.test.junit.QuarkusTest;
 import io.quarkus.test.junit.mockito.InjectMock;
@@ -27,13 +37,30 @@ class ScriptRunnerTest {
     @InjectMock
     EnvironmentVariables environmentVariables;
 
+    @InjectMock
+    LogTail logTail;
+
+    @InjectMock
+    ConsoleWriter consoleWriter;
+
     ScriptRunner scriptRunner;
 
+    List<String> loggedLines;
+
+    List<String> consoleLines;
+
     @BeforeEach
     void setUp() {
         when(environmentVariables.getJobConcurrency()).thenReturn(1);
         when(environmentVariables.getShell()).thenReturn( "/bin/bash");
-        this.scriptRunner = new ScriptRunner(s3Loggers, environmentVariables);
+        when(environmentVariables.getMaxLineLength()).thenReturn(1024);
+        loggedLines = new ArrayList<>();
+        consoleLines = new ArrayList<>();
+        doAnswer(invocation -> loggedLines.add(decode(invocation.getArguments())))
+                .when(s3Loggers).log(any(byte[].class), anyInt(), anyInt(), any());
+        doAnswer(invocation -> consoleLines.add(decode(Arrays.copyOfRange(invocation.getArguments(), 1, 4))))
+                .when(consoleWriter).write(any(), any(byte[].class), anyInt(), anyInt());
+        this.scriptRunner = new ScriptRunner(s3Loggers, logTail, consoleWriter, new ProcessTreeMonitor(50), environmentVariables);
     }
 
     @Test
@@ -44,7 +71,8 @@ class ScriptRunnerTest {
         int i = scriptRunner.runScript(script, 1000);
 
         assertEquals(0, i);
-        verify(s3Loggers, never()).log(anyString(), any());
+        verify(s3Loggers, never()).log(any(byte[].class), anyInt(), anyInt(), any());
+        assertEquals(List.of("Testing"), consoleLines);
     }
 
     @Test
@@ -52,9 +80,51 @@ class ScriptRunnerTest {
         Path script = Paths.get("src", "test", "resources", "test-script.sh");
 
         JobData jobData = createJobData();
-        int i = scriptRunner.runScript(script, 1000, jobData);
+        int i = scriptRunner.runScript(script, 1000, jobData).exitCode();
+
+        assertEquals(0, i);
+        assertEquals(2, loggedLines.size());
+        assertEquals("Testing", loggedLines.get(0));
+        assertTrue(loggedLines.get(1).startsWith("[resource usage: wall time = "), loggedLines.get(1));
+        assertEquals(List.of("Testing"), consoleLines);
+        verify(consoleWriter).write(eq(jobData), any(byte[].class), anyInt(), anyInt());
+        InOrder inOrder = inOrder(logTail);
+        inOrder.verify(logTail, times(2)).publish(eq(jobData), any(byte[].class), anyInt(), anyInt());
+        inOrder.verify(logTail).jobFinished(jobData);
+    }
+
+    @Test
+    public void test_jobRequestWithLogReduction() {
+        when(environmentVariables.isLogReductionEnabled()).thenReturn(true);
+        Path script = Paths.get("src", "test", "resources", "test-progress-script.sh");
+
+        JobData jobData = createJobData();
+        int i = scriptRunner.runScript(script, 1000, jobData).exitCode();
 
         assertEquals(0, i);
-        verify(s3Loggers).log("Testing", jobData);
+        assertEquals(List.of("Downloading 100%",
+                             "waiting",
+                             "[previous line repeated 1 more times]",
+                             "done"), loggedLines.subList(0, 4));
+        verify(s3Loggers, times(5)).log(any(byte[].class), anyInt(), anyInt(), eq(jobData));
+    }
+
+    @Test
+    public void test_jobRequestShouldMeasureResourceUsageOfProcessTree() {
+        Path script = Paths.get("src", "test", "resources", "test-busy-script.sh");
+
+        ScriptResult scriptResult = scriptRunner.runScript(script, 1000, createJobData());
+
+        assertEquals(0, scriptResult.exitCode());
+        ResourceUsage resourceUsage = scriptResult.resourceUsage();
+        assertTrue(resourceUsage.processCount() >= 2, "process count was " + resourceUsage.processCount());
+        assertTrue(resourceUsage.cpuTimeMillis() > 0, "cpu time was " + resourceUsage.cpuTimeMillis());
+        assertTrue(resourceUsage.peakRssBytes() > 0, "peak rss was " + resourceUsage.peakRssBytes());
+        assertTrue(resourceUsage.wallTimeMillis() >= 500, "wall time was " + resourceUsage.wallTimeMillis());
+        assertEquals("[resource usage: " + resourceUsage + "]", loggedLines.get(loggedLines.size() - 1));
+    }
+
+    private static String decode(Object[] arguments) {
+        return new String((byte[]) arguments[0], (int) arguments[1], (int) arguments[2], StandardCharsets.UTF_8);
     }
 }
@@ -0,0 +1,96 @@
+package se.attini.runner;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.mockito.Mockito.verify;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.mockito.InjectMock;
+import software.amazon.awssdk.services.sfn.SfnClient;
+import software.amazon.awssdk.services.sfn.model.SendTaskSuccessRequest;
+
+@QuarkusTest
+class SfnFacadeTest {
+
+    private static final ResourceUsage RESOURCE_USAGE = new ResourceUsage(1000, 500, 1024 * 1024, 10, 20, 3);
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @InjectMock
+    SfnClient sfnClient;
+
+    SfnFacade sfnFacade;
+    Path outputFile;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        sfnFacade = new SfnFacade(sfnClient);
+        outputFile = Files.createTempFile("output", ".json");
+    }
+
+    @AfterEach
+    void tearDown() {
+        FileUtils.deleteQuietly(outputFile.toFile());
+    }
+
+    @Test
+    void setTaskSuccess_shouldAddResourceUsageToObjectOutput() throws IOException {
+        Files.writeString(outputFile, "{\"stackName\":\"test-stack\"}");
+
+        sfnFacade.setTaskSuccess(TestJobData.createJobData(), outputFile, RESOURCE_USAGE);
+
+        JsonNode output = sentOutput();
+        assertEquals("test-stack", output.path("stackName").asText());
+        JsonNode resourceUsage = output.path(SfnFacade.RESOURCE_USAGE_FIELD);
+        assertEquals(1000, resourceUsage.path("wallTimeMillis").asLong());
+        assertEquals(1024 * 1024, resourceUsage.path("peakRssBytes").asLong());
+        assertEquals(3, resourceUsage.path("processCount").asInt());
+    }
+
+    @Test
+    void setTaskSuccess_shouldNotAddResourceUsageToOtherOutput() throws IOException {
+        Files.writeString(outputFile, "[\"first\",\"second\"]");
+
+        sfnFacade.setTaskSuccess(TestJobData.createJobData(), outputFile, RESOURCE_USAGE);
+
+        assertEquals(objectMapper.readTree("[\"first\",\"second\"]"), sentOutput());
+    }
+
+    @Test
+    void setTaskSuccess_shouldKeepResourceUsageFieldSetByTheScript() throws IOException {
+        Files.writeString(outputFile, "{\"" + SfnFacade.RESOURCE_USAGE_FIELD + "\":\"from the script\"}");
+
+        sfnFacade.setTaskSuccess(TestJobData.createJobData(), outputFile, RESOURCE_USAGE);
+
+        assertEquals("from the script", sentOutput().path(SfnFacade.RESOURCE_USAGE_FIELD).asText());
+    }
+
+    @Test
+    void setTaskSuccess_shouldSendOutputAsItIsWithoutResourceUsage() throws IOException {
+        Files.writeString(outputFile, "{\"stackName\":\"test-stack\"}");
+
+        sfnFacade.setTaskSuccess(TestJobData.createJobData(), outputFile, null);
+
+        JsonNode output = sentOutput();
+        assertEquals("test-stack", output.path("stackName").asText());
+        assertFalse(output.has(SfnFacade.RESOURCE_USAGE_FIELD));
+    }
+
+    private JsonNode sentOutput() throws IOException {
+        ArgumentCaptor<SendTaskSuccessRequest> captor = ArgumentCaptor.forClass(SendTaskSuccessRequest.class);
+        verify(sfnClient).sendTaskSuccess(captor.capture());
+        return objectMapper.readTree(captor.getValue().output());
+    }
+}
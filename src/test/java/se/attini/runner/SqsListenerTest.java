@@ -0,0 +1,134 @@
+package se.attini.runner;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.mockito.InjectMock;
+import software.amazon.awssdk.services.sqs.SqsClient;
+import software.amazon.awssdk.services.sqs.model.Message;
+import software.amazon.awssdk.services.sqs.model.ReceiveMessageRequest;
+import software.amazon.awssdk.services.sqs.model.ReceiveMessageResponse;
+
+@QuarkusTest
+class SqsListenerTest {
+
+    @InjectMock
+    EnvironmentVariables environmentVariables;
+    @InjectMock
+    Shutdown shutdown;
+    @InjectMock
+    SqsClient sqsClient;
+    @InjectMock
+    JobDispatcher jobDispatcher;
+
+    @BeforeEach
+    void setUp() {
+        when(environmentVariables.getIdleTime()).thenReturn(3600);
+        when(environmentVariables.getQueueUrl()).thenReturn("test-queue");
+        when(sqsClient.receiveMessage(any(ReceiveMessageRequest.class))).thenReturn(ReceiveMessageResponse.builder()
+                                                                                                         .build());
+    }
+
+    @Test
+    void listen_shouldReceiveOneMessagePerFreeSlot() {
+        when(environmentVariables.getJobConcurrency()).thenReturn(3);
+
+        createSqsListener().listen();
+
+        assertEquals(3, captureReceiveRequest().maxNumberOfMessages());
+    }
+
+    @Test
+    void listen_shouldNotReceiveMoreThanSqsBatchLimit() {
+        when(environmentVariables.getJobConcurrency()).thenReturn(25);
+
+        createSqsListener().listen();
+
+        assertEquals(10, captureReceiveRequest().maxNumberOfMessages());
+    }
+
+    @Test
+    void listen_shouldNotPollWithoutFreeSlots() throws InterruptedException {
+        when(environmentVariables.getJobConcurrency()).thenReturn(2);
+        when(environmentVariables.getIdleTime()).thenReturn(1);
+        JobSlots jobSlots = new JobSlots(environmentVariables);
+        assertEquals(2, jobSlots.acquire(2, 1, TimeUnit.SECONDS));
+
+        createSqsListener(jobSlots).listen();
+
+        verify(sqsClient, never()).receiveMessage(any(ReceiveMessageRequest.class));
+    }
+
+    @Test
+    void listen_shouldReleaseUnusedSlots() throws InterruptedException {
+        when(environmentVariables.getJobConcurrency()).thenReturn(4);
+        JobSlots jobSlots = new JobSlots(environmentVariables);
+
+        createSqsListener(jobSlots).listen();
+
+        assertEquals(4, jobSlots.acquire(10, 1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void listen_shouldHandOverReceivedMessagesWithTheirSlots() throws InterruptedException {
+        when(environmentVariables.getJobConcurrency()).thenReturn(4);
+        List<Message> messages = List.of(Message.builder().receiptHandle("job-1").build(),
+                                         Message.builder().receiptHandle("job-2").build());
+        when(sqsClient.receiveMessage(any(ReceiveMessageRequest.class))).thenReturn(ReceiveMessageResponse.builder()
+                                                                                                         .messages(messages)
+                                                                                                         .build());
+        JobSlots jobSlots = new JobSlots(environmentVariables);
+
+        createSqsListener(jobSlots).listen();
+
+        verify(jobDispatcher).submit(messages);
+        assertEquals(2, jobSlots.getQueueDepth());
+        assertEquals(2, jobSlots.acquire(10, 1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void listen_shouldNotCountSlotsHeldWhilePollingAsQueuedJobs() {
+        when(environmentVariables.getJobConcurrency()).thenReturn(4);
+        JobSlots jobSlots = new JobSlots(environmentVariables);
+        AtomicInteger queueDepthWhilePolling = new AtomicInteger(-1);
+        when(sqsClient.receiveMessage(any(ReceiveMessageRequest.class))).thenAnswer(invocation -> {
+            queueDepthWhilePolling.set(jobSlots.getQueueDepth());
+            return ReceiveMessageResponse.builder().build();
+        });
+
+        createSqsListener(jobSlots).listen();
+
+        assertEquals(0, queueDepthWhilePolling.get());
+        assertEquals(0, jobSlots.getQueueDepth());
+    }
+
+    private ReceiveMessageRequest captureReceiveRequest() {
+        ArgumentCaptor<ReceiveMessageRequest> captor = ArgumentCaptor.forClass(ReceiveMessageRequest.class);
+        verify(sqsClient).receiveMessage(captor.capture());
+        return captor.getValue();
+    }
+
+    private SqsListener createSqsListener() {
+        return createSqsListener(new JobSlots(environmentVariables));
+    }
+
+    private SqsListener createSqsListener(JobSlots jobSlots) {
+        return new SqsListener(environmentVariables,
+                               shutdown,
+                               sqsClient,
+                               jobSlots,
+                               jobDispatcher);
+    }
+}
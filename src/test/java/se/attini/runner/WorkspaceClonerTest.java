@@ -0,0 +1,83 @@
+package se.attini.runner;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class WorkspaceClonerTest {
+
+    Path tempDirectory;
+    Path template;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        tempDirectory = Files.createTempDirectory("workspace-cloner-test");
+        template = Files.createDirectories(tempDirectory.resolve("template"));
+        Files.createDirectories(template.resolve("scripts/empty"));
+        Files.writeString(template.resolve("attini-config.yaml"), "distributionName: test");
+        Files.writeString(template.resolve("scripts/deploy.sh"), "echo deploy");
+        Files.setPosixFilePermissions(template.resolve("scripts/deploy.sh"), PosixFilePermissions.fromString("rwxr-xr-x"));
+    }
+
+    @AfterEach
+    void tearDown() {
+        FileUtils.deleteQuietly(tempDirectory.toFile());
+    }
+
+    @Test
+    void clone_copyShouldCreateIndependentFiles() throws IOException {
+        Path workspace = Files.createDirectory(tempDirectory.resolve("workspace"));
+
+        assertEquals(WorkspaceCloner.Strategy.COPY, new WorkspaceCloner(WorkspaceCloner.Strategy.COPY).clone(template, workspace));
+
+        assertWorkspace(workspace);
+        assertFalse(Files.isSameFile(template.resolve("scripts/deploy.sh"), workspace.resolve("scripts/deploy.sh")));
+    }
+
+    @Test
+    void clone_hardlinkShouldLinkFiles() throws IOException {
+        Path workspace = Files.createDirectory(tempDirectory.resolve("workspace"));
+
+        assertEquals(WorkspaceCloner.Strategy.HARDLINK, new WorkspaceCloner(WorkspaceCloner.Strategy.HARDLINK).clone(template, workspace));
+
+        assertWorkspace(workspace);
+        assertTrue(Files.isSameFile(template.resolve("scripts/deploy.sh"), workspace.resolve("scripts/deploy.sh")));
+        // the files are shared with the template, so writing to them in place must fail
+        assertEquals("r-xr-xr-x", PosixFilePermissions.toString(Files.getPosixFilePermissions(workspace.resolve("scripts/deploy.sh"))));
+        assertEquals("r--r--r--", PosixFilePermissions.toString(Files.getPosixFilePermissions(template.resolve("attini-config.yaml"))));
+    }
+
+    @Test
+    void clone_autoShouldReflinkOrCopy() throws IOException {
+        WorkspaceCloner workspaceCloner = new WorkspaceCloner(WorkspaceCloner.Strategy.AUTO);
+        for (int i = 0; i < 2; i++) {
+            Path workspace = Files.createDirectory(tempDirectory.resolve("workspace-" + i));
+
+            WorkspaceCloner.Strategy strategy = workspaceCloner.clone(template, workspace);
+
+            assertTrue(strategy == WorkspaceCloner.Strategy.REFLINK || strategy == WorkspaceCloner.Strategy.COPY);
+            assertWorkspace(workspace);
+            assertFalse(Files.isSameFile(template.resolve("scripts/deploy.sh"), workspace.resolve("scripts/deploy.sh")));
+        }
+        try (var files = Files.list(tempDirectory)) {
+            assertEquals(3, files.count());
+        }
+    }
+
+    private static void assertWorkspace(Path workspace) throws IOException {
+        assertEquals("distributionName: test", Files.readString(workspace.resolve("attini-config.yaml")));
+        assertEquals("echo deploy", Files.readString(workspace.resolve("scripts/deploy.sh")));
+        assertTrue(Files.isExecutable(workspace.resolve("scripts/deploy.sh")));
+        assertTrue(Files.isDirectory(workspace.resolve("scripts/empty")));
+    }
+}
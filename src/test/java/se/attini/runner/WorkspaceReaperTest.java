@@ -0,0 +1,67 @@
+package se.attini.runner;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.quarkus.test.junit.QuarkusTest;
+
+@QuarkusTest
+class WorkspaceReaperTest {
+
+    Path tempDirectory;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        tempDirectory = Files.createTempDirectory("workspace-reaper-test");
+    }
+
+    @AfterEach
+    void tearDown() {
+        FileUtils.deleteQuietly(tempDirectory.toFile());
+    }
+
+    @Test
+    void reap_shouldMoveDirectoryToTrashAndDeleteIt() throws IOException, InterruptedException {
+        Path trashDirectory = tempDirectory.resolve("trash");
+        Path workspace = Files.createDirectories(tempDirectory.resolve("workspace/nested"));
+        Files.writeString(workspace.resolve("file.txt"), "content");
+        WorkspaceReaper workspaceReaper = new WorkspaceReaper(trashDirectory);
+
+        workspaceReaper.reap(workspace.getParent());
+
+        assertFalse(Files.exists(workspace.getParent()));
+        awaitEmpty(workspaceReaper, trashDirectory);
+    }
+
+    @Test
+    void sweep_shouldDeleteLeftoversInTrash() throws IOException, InterruptedException {
+        Path trashDirectory = tempDirectory.resolve("trash");
+        Path leftover = Files.createDirectories(trashDirectory.resolve("leftover"));
+        Files.writeString(leftover.resolve("file.txt"), "content");
+        WorkspaceReaper workspaceReaper = new WorkspaceReaper(trashDirectory);
+
+        workspaceReaper.sweep();
+
+        awaitEmpty(workspaceReaper, trashDirectory);
+        assertTrue(Files.isDirectory(trashDirectory));
+    }
+
+    private static void awaitEmpty(WorkspaceReaper workspaceReaper, Path trashDirectory) throws IOException, InterruptedException {
+        for (int i = 0; i < 100 && workspaceReaper.getPendingDeletes() > 0; i++) {
+            Thread.sleep(50);
+        }
+        try (Stream<Path> files = Files.list(trashDirectory)) {
+            assertTrue(files.findAny().isEmpty());
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package se.attini.runner;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.FileUtils;
+
+import io.quarkus.fs.util.ZipUtils;
+
+/**
+ * Compares the {@link ZipExtractor} with {@link ZipUtils#unzip(Path, Path)}, which was used to extract distributions
+ * before. It is not run as a test. Run it with the test classpath, for example
+ * <pre>
+ * mvn -B test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+ * java -cp target/classes:target/test-classes:$(cat target/cp.txt) se.attini.runner.ZipExtractorBenchmark 4
+ * </pre>
+ * The argument is the number of extraction threads. Two zips are extracted, one with 10 000 small files and one
+ * with four files of 64 MB, and the best of five rounds is printed after a warm up round.
+ */
+public class ZipExtractorBenchmark {
+
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws IOException {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        Path directory = Files.createTempDirectory("zip-extractor-benchmark");
+        try {
+            Random random = new Random(1);
+            byte[] text = new byte[1024 * 1024];
+            for (int i = 0; i < text.length; i++) {
+                text[i] = (byte) ('a' + random.nextInt(8));
+            }
+            Path small = directory.resolve("small-files.zip");
+            try (ZipOutputStream zipOutputStream = new ZipOutputStream(Files.newOutputStream(small))) {
+                for (int i = 0; i < 10_000; i++) {
+                    zipOutputStream.putNextEntry(new ZipEntry("dir" + i % 100 + "/file" + i + ".txt"));
+                    zipOutputStream.write(text, i % 1000, 2000 + i % 6000);
+                }
+            }
+            Path large = directory.resolve("large-files.zip");
+            try (ZipOutputStream zipOutputStream = new ZipOutputStream(Files.newOutputStream(large))) {
+                for (int i = 0; i < 4; i++) {
+                    zipOutputStream.putNextEntry(new ZipEntry("large" + i + ".bin"));
+                    for (int j = 0; j < 64; j++) {
+                        zipOutputStream.write(text);
+                    }
+                }
+            }
+
+            ZipExtractor zipExtractor = new ZipExtractor(threads, Long.MAX_VALUE);
+            Path target = directory.resolve("target");
+            for (Path zip : new Path[]{small, large}) {
+                long zipUtils = measure(target, () -> ZipUtils.unzip(zip, target));
+                long extractor = measure(target, () -> zipExtractor.extract(zip, target));
+                System.out.println(zip.getFileName() + ": ZipUtils " + zipUtils + " ms, ZipExtractor with " + threads + " threads " + extractor + " ms");
+            }
+        } finally {
+            FileUtils.deleteDirectory(directory.toFile());
+        }
+    }
+
+    private static long measure(Path target, Extraction extraction) throws IOException {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i <= ROUNDS; i++) {
+            long start = System.nanoTime();
+            extraction.run();
+            long millis = (System.nanoTime() - start) / 1_000_000;
+            if (i > 0) {
+                best = Math.min(best, millis);
+            }
+            FileUtils.deleteDirectory(target.toFile());
+        }
+        return best;
+    }
+
+    private interface Extraction {
+        void run() throws IOException;
+    }
+}
@@ -0,0 +1,313 @@
+package se.attini.runner;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class ZipExtractorTest {
+
+    Path tempDirectory;
+    Path target;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        tempDirectory = Files.createTempDirectory("zip-extractor-test");
+        target = tempDirectory.resolve("target");
+    }
+
+    @AfterEach
+    void tearDown() {
+        FileUtils.deleteQuietly(tempDirectory.toFile());
+    }
+
+    @Test
+    void extract_shouldExtractAllEntries() throws IOException {
+        byte[] large = new byte[3 * 1024 * 1024];
+        new Random(1).nextBytes(large);
+        Path zip = tempDirectory.resolve("sources.zip");
+        try (ZipOutputStream zipOutputStream = new ZipOutputStream(Files.newOutputStream(zip))) {
+            zipOutputStream.putNextEntry(new ZipEntry("empty/"));
+            for (int i = 0; i < 500; i++) {
+                zipOutputStream.putNextEntry(new ZipEntry("dir" + i % 10 + "/file" + i + ".txt"));
+                zipOutputStream.write(("file " + i).repeat(i).getBytes(StandardCharsets.UTF_8));
+            }
+            zipOutputStream.putNextEntry(new ZipEntry("large.bin"));
+            zipOutputStream.write(large);
+            ZipEntry stored = new ZipEntry("stored.bin");
+            stored.setMethod(ZipEntry.STORED);
+            stored.setSize(large.length);
+            stored.setCompressedSize(large.length);
+            CRC32 crc = new CRC32();
+            crc.update(large);
+            stored.setCrc(crc.getValue());
+            zipOutputStream.putNextEntry(stored);
+            zipOutputStream.write(large);
+        }
+
+        new ZipExtractor(4, Long.MAX_VALUE).extract(zip, target);
+
+        assertTrue(Files.isDirectory(target.resolve("empty")));
+        for (int i = 0; i < 500; i++) {
+            assertEquals(("file " + i).repeat(i), Files.readString(target.resolve("dir" + i % 10 + "/file" + i + ".txt")));
+        }
+        assertArrayEquals(large, Files.readAllBytes(target.resolve("large.bin")));
+        assertArrayEquals(large, Files.readAllBytes(target.resolve("stored.bin")));
+    }
+
+    @Test
+    void extract_shouldKeepPermissions() throws IOException {
+        Path zip = tempDirectory.resolve("sources.zip");
+        try (FileSystem zipFileSystem = FileSystems.newFileSystem(URI.create("jar:" + zip.toUri()),
+                                                                  Map.of("create", "true", "enablePosixFileAttributes", "true"))) {
+            Path script = zipFileSystem.getPath("deploy.sh");
+            Files.writeString(script, "echo deploy");
+            Files.setPosixFilePermissions(script, PosixFilePermissions.fromString("r-xr-x---"));
+        }
+
+        new ZipExtractor(2, Long.MAX_VALUE).extract(zip, target);
+
+        assertEquals("rwxr-x---", PosixFilePermissions.toString(Files.getPosixFilePermissions(target.resolve("deploy.sh"))));
+    }
+
+    @Test
+    void extract_shouldExtractWhileReadingStream() throws IOException {
+        Path zip = tempDirectory.resolve("sources.zip");
+        try (FileSystem zipFileSystem = FileSystems.newFileSystem(URI.create("jar:" + zip.toUri()),
+                                                                  Map.of("create", "true", "enablePosixFileAttributes", "true"))) {
+            Files.createDirectories(zipFileSystem.getPath("scripts/empty"));
+            Path script = zipFileSystem.getPath("scripts/deploy.sh");
+            Files.writeString(script, "echo deploy");
+            Files.setPosixFilePermissions(script, PosixFilePermissions.fromString("r-xr-xr-x"));
+            Files.writeString(zipFileSystem.getPath("attini-config.yaml"), "distributionName: test");
+        }
+        Path copy = tempDirectory.resolve("copy.zip");
+
+        try (InputStream inputStream = Files.newInputStream(zip)) {
+            new ZipExtractor(2, Long.MAX_VALUE).extract(inputStream, copy, target);
+        }
+
+        assertArrayEquals(Files.readAllBytes(zip), Files.readAllBytes(copy));
+        assertEquals("distributionName: test", Files.readString(target.resolve("attini-config.yaml")));
+        assertEquals("echo deploy", Files.readString(target.resolve("scripts/deploy.sh")));
+        assertEquals("rwxr-xr-x", PosixFilePermissions.toString(Files.getPosixFilePermissions(target.resolve("scripts/deploy.sh"))));
+        assertTrue(Files.isDirectory(target.resolve("scripts/empty")));
+    }
+
+    @Test
+    void extract_shouldNotKeepStreamedEntriesThatAreNotInTheCentralDirectory() throws IOException {
+        byte[] content = "echo deploy".getBytes(StandardCharsets.UTF_8);
+        Path zip = tempDirectory.resolve("sources.zip");
+        Files.write(zip, storedZip(List.of("stale.sh", "deploy.sh"), List.of(content, content), false, Set.of("stale.sh")));
+        Path copy = tempDirectory.resolve("copy.zip");
+
+        try (InputStream inputStream = Files.newInputStream(zip)) {
+            new ZipExtractor(2, Long.MAX_VALUE).extract(inputStream, copy, target);
+        }
+
+        assertArrayEquals(content, Files.readAllBytes(target.resolve("deploy.sh")));
+        assertFalse(Files.exists(target.resolve("stale.sh")));
+    }
+
+    @Test
+    void extract_shouldRejectEntriesOutsideOfTargetWhileReadingStream() throws IOException {
+        Path zip = zip("../evil.sh", "rm -rf /");
+
+        try (InputStream inputStream = Files.newInputStream(zip)) {
+            assertThrows(IOException.class,
+                         () -> new ZipExtractor(2, Long.MAX_VALUE).extract(inputStream, tempDirectory.resolve("copy.zip"), target));
+        }
+        assertFalse(Files.exists(tempDirectory.resolve("evil.sh")));
+    }
+
+    @Test
+    void extract_shouldRejectEntriesOutsideOfTarget() throws IOException {
+        Path zip = zip("../evil.sh", "rm -rf /");
+
+        assertThrows(IOException.class, () -> new ZipExtractor(2, Long.MAX_VALUE).extract(zip, target));
+        assertFalse(Files.exists(tempDirectory.resolve("evil.sh")));
+    }
+
+    @Test
+    void extract_shouldRejectZipsOverTheSizeLimit() throws IOException {
+        Path zip = zip("large.txt", "a".repeat(1000));
+
+        assertThrows(IOException.class, () -> new ZipExtractor(2, 999).extract(zip, target));
+        assertFalse(Files.exists(target.resolve("large.txt")));
+    }
+
+    @Test
+    void extract_shouldRejectCorruptEntries() throws IOException {
+        Path zip = zip("file.txt", "a".repeat(1000));
+        byte[] bytes = Files.readAllBytes(zip);
+        // the crc of the local file header and then of the central directory header
+        int local = 14;
+        int central = indexOf(bytes, new byte[]{0x50, 0x4b, 0x01, 0x02}) + 16;
+        bytes[local] ^= 1;
+        bytes[central] ^= 1;
+        Files.write(zip, bytes);
+
+        assertThrows(IOException.class, () -> new ZipExtractor(2, Long.MAX_VALUE).extract(zip, target));
+    }
+
+    @Test
+    void readCentralDirectory_shouldReadZip64EndOfCentralDirectory() throws IOException {
+        // more entries than fit in the end of central directory record, which makes ZipOutputStream write zip64
+        int entryCount = 0x10000 + 10;
+        Path zip = tempDirectory.resolve("many.zip");
+        try (ZipOutputStream zipOutputStream = new ZipOutputStream(Files.newOutputStream(zip))) {
+            for (int i = 0; i < entryCount; i++) {
+                zipOutputStream.putNextEntry(new ZipEntry("dir" + i % 100 + "/file" + i));
+            }
+        }
+
+        List<ZipExtractor.Entry> entries;
+        try (FileChannel channel = FileChannel.open(zip)) {
+            entries = ZipExtractor.readCentralDirectory(channel);
+        }
+
+        assertEquals(entryCount, entries.size());
+        assertEquals("dir0/file0", entries.get(0).name());
+        assertEquals("dir" + (entryCount - 1) % 100 + "/file" + (entryCount - 1), entries.get(entryCount - 1).name());
+    }
+
+    @Test
+    void extract_shouldReadSizesAndOffsetsFromZip64ExtraField() throws IOException {
+        byte[] first = "first entry".getBytes(StandardCharsets.UTF_8);
+        byte[] second = "second entry".getBytes(StandardCharsets.UTF_8);
+        Path zip = tempDirectory.resolve("zip64.zip");
+        Files.write(zip, storedZip(List.of("first.txt", "second.txt"), List.of(first, second), true, Set.of()));
+
+        new ZipExtractor(2, Long.MAX_VALUE).extract(zip, target);
+
+        assertArrayEquals(first, Files.readAllBytes(target.resolve("first.txt")));
+        assertArrayEquals(second, Files.readAllBytes(target.resolve("second.txt")));
+    }
+
+    /**
+     * Build a zip of stored entries by hand. With zip64 the first entry's sizes and offset in the central directory
+     * are only given in a zip64 extra field, the way they are for entries over 4 GB. Unlisted entries are written
+     * but left out of the central directory, the way a replaced entry is.
+     */
+    private static byte[] storedZip(List<String> names, List<byte[]> contents, boolean zip64, Set<String> unlisted) {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+        long[] offsets = new long[names.size()];
+        long[] crcs = new long[names.size()];
+        for (int i = 0; i < names.size(); i++) {
+            byte[] name = names.get(i).getBytes(StandardCharsets.UTF_8);
+            byte[] content = contents.get(i);
+            CRC32 crc = new CRC32();
+            crc.update(content);
+            crcs[i] = crc.getValue();
+            offsets[i] = buffer.position();
+            buffer.putInt(0x04034b50)
+                  .putShort((short) 45)
+                  .putShort((short) 0)
+                  .putShort((short) ZipEntry.STORED)
+                  .putInt(0)
+                  .putInt((int) crcs[i])
+                  .putInt(content.length)
+                  .putInt(content.length)
+                  .putShort((short) name.length)
+                  .putShort((short) 0)
+                  .put(name)
+                  .put(content);
+        }
+        int directoryOffset = buffer.position();
+        int listed = 0;
+        for (int i = 0; i < names.size(); i++) {
+            if (unlisted.contains(names.get(i))) {
+                continue;
+            }
+            listed++;
+            byte[] name = names.get(i).getBytes(StandardCharsets.UTF_8);
+            int length = contents.get(i).length;
+            boolean extra = zip64 && i == 0;
+            buffer.putInt(0x02014b50)
+                  .putShort((short) (3 << 8 | 45))
+                  .putShort((short) 45)
+                  .putShort((short) 0)
+                  .putShort((short) ZipEntry.STORED)
+                  .putInt(0)
+                  .putInt((int) crcs[i])
+                  .putInt(extra ? -1 : length)
+                  .putInt(extra ? -1 : length)
+                  .putShort((short) name.length)
+                  .putShort((short) (extra ? 28 : 0))
+                  .putShort((short) 0)
+                  .putShort((short) 0)
+                  .putShort((short) 0)
+                  .putInt(0100644 << 16)
+                  .putInt(extra ? -1 : (int) offsets[i])
+                  .put(name);
+            if (extra) {
+                buffer.putShort((short) 0x0001)
+                      .putShort((short) 24)
+                      .putLong(length)
+                      .putLong(length)
+                      .putLong(offsets[i]);
+            }
+        }
+        int directorySize = buffer.position() - directoryOffset;
+        buffer.putInt(0x06054b50)
+              .putShort((short) 0)
+              .putShort((short) 0)
+              .putShort((short) listed)
+              .putShort((short) listed)
+              .putInt(directorySize)
+              .putInt(directoryOffset)
+              .putShort((short) 0);
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    private Path zip(String name, String content) throws IOException {
+        Path zip = tempDirectory.resolve("test.zip");
+        try (OutputStream outputStream = Files.newOutputStream(zip);
+             ZipOutputStream zipOutputStream = new ZipOutputStream(outputStream)) {
+            zipOutputStream.putNextEntry(new ZipEntry(name));
+            zipOutputStream.write(content.getBytes(StandardCharsets.UTF_8));
+        }
+        return zip;
+    }
+
+    private static int indexOf(byte[] bytes, byte[] pattern) {
+        for (int i = 0; i <= bytes.length - pattern.length; i++) {
+            int j = 0;
+            while (j < pattern.length && bytes[i + j] == pattern[j]) {
+                j++;
+            }
+            if (j == pattern.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,3 @@
+bash -c 'i=0; while [ $i -lt 300000 ]; do i=$((i+1)); done'
+sleep 0.5
+echo "done"
@@ -0,0 +1,4 @@
+printf "Downloading 10%%\rDownloading 100%%\n"
+echo "waiting"
+echo "waiting"
+echo "done"